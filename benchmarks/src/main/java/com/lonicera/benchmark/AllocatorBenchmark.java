@@ -0,0 +1,82 @@
+package com.lonicera.benchmark;
+
+import com.lonicera.alloc.ByteBuf;
+import com.lonicera.alloc.MemoryAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Allocate-then-release cost of one buffer per size class, against Netty's pooled allocator and a
+ * plain {@link ByteBuffer#allocateDirect(int)}. Thread counts are driven by {@link
+ * AllocatorBenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:MaxDirectMemorySize=4g"})
+public class AllocatorBenchmark {
+
+  public enum SizeClass {
+    TINY(8),
+    QUANTUM(256),
+    SUB_PAGE(2048),
+    LARGE(40960),
+    HUGE(4 * 1024 * 1024);
+
+    private final int capacity;
+
+    SizeClass(int capacity) {
+      this.capacity = capacity;
+    }
+  }
+
+  @Param
+  private SizeClass sizeClass;
+
+  private int capacity;
+
+  private MemoryAllocator memoryAllocator;
+
+  private PooledByteBufAllocator nettyAllocator;
+
+  @Setup
+  public void setup() {
+    capacity = sizeClass.capacity;
+    memoryAllocator = new MemoryAllocator();
+    nettyAllocator = new PooledByteBufAllocator(true);
+  }
+
+  @Benchmark
+  public void memoryAllocator(Blackhole blackhole) {
+    ByteBuf byteBuf = memoryAllocator.alloc(capacity);
+    blackhole.consume(byteBuf);
+    byteBuf.release();
+  }
+
+  @Benchmark
+  public void nettyPooledDirect(Blackhole blackhole) {
+    io.netty.buffer.ByteBuf byteBuf = nettyAllocator.directBuffer(capacity);
+    blackhole.consume(byteBuf);
+    byteBuf.release();
+  }
+
+  @Benchmark
+  public void allocateDirect(Blackhole blackhole) {
+    blackhole.consume(ByteBuffer.allocateDirect(capacity));
+  }
+}
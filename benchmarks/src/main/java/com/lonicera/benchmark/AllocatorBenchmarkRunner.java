@@ -0,0 +1,45 @@
+package com.lonicera.benchmark;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs {@link AllocatorBenchmark} at 1, N/2, N and 2N threads, N being the available processors.
+ * Thread counts can be overridden on the command line, e.g. {@code java -jar benchmarks.jar 1 8}.
+ * Each run writes {@code allocator-t<threads>.json} next to the working directory.
+ */
+public class AllocatorBenchmarkRunner {
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : threadCounts(args)) {
+      Options options = new OptionsBuilder()
+          .include(AllocatorBenchmark.class.getName())
+          .threads(threads)
+          .resultFormat(ResultFormatType.JSON)
+          .result("allocator-t" + threads + ".json")
+          .build();
+      new Runner(options).run();
+    }
+  }
+
+  private static Set<Integer> threadCounts(String[] args) {
+    Set<Integer> threadCounts = new LinkedHashSet<>();
+    if (args.length > 0) {
+      for (String arg : args) {
+        threadCounts.add(Integer.parseInt(arg));
+      }
+      return threadCounts;
+    }
+    int processors = Runtime.getRuntime().availableProcessors();
+    threadCounts.add(1);
+    threadCounts.add(Math.max(1, processors >> 1));
+    threadCounts.add(processors);
+    threadCounts.add(processors << 1);
+    return threadCounts;
+  }
+}
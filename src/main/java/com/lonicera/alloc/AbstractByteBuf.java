@@ -0,0 +1,725 @@
+package com.lonicera.alloc;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Accessors shared by pooled and unpooled buffers. All of them go through the absolute methods of
+ * the chunk's {@link ByteBuffer}, which never touch its position or limit, so buffers carved out
+ * of the same chunk can be used from different threads without a per-buffer {@code duplicate()}.
+ */
+abstract class AbstractByteBuf implements ByteBuf {
+
+  private static final AtomicIntegerFieldUpdater<AbstractByteBuf> REF_CNT_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(AbstractByteBuf.class, "refCnt");
+
+  private volatile int refCnt = 1;
+  private ByteBuffer memory;
+  private int offset;
+  private int capacity;
+  private int readerIndex;
+  private int writerIndex;
+  private ByteBuffer tmpNioBuf;
+  private LeakDetector.Tracker leak;
+  // bumped each time the memory is released, so views can tell a recycled wrapper from theirs
+  private int generation;
+
+  void initMemory(ByteBuffer memory, int offset, int capacity) {
+    if (this.memory != memory) {
+      this.memory = memory;
+      this.tmpNioBuf = null;
+    }
+    this.offset = offset;
+    this.capacity = capacity;
+    this.readerIndex = 0;
+    this.writerIndex = 0;
+  }
+
+  /**
+   * Changes the capacity without touching the memory or the indexes; for buffers whose memory is
+   * not a single region.
+   */
+  void adjustCapacity(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * Moves the buffer onto {@code capacity} bytes of {@code memory} at {@code offset}, copying as
+   * much of the old content as still fits, whatever the indexes. The indexes are kept, clipped to
+   * the new capacity.
+   */
+  void moveMemory(ByteBuffer memory, int offset, int capacity) {
+    int writerIndex = Math.min(this.writerIndex, capacity);
+    int readerIndex = Math.min(this.readerIndex, writerIndex);
+    if (memory != this.memory || offset != this.offset) {
+      ByteBuffer src = this.memory.duplicate();
+      ((Buffer) src).limit(this.offset + Math.min(this.capacity, capacity));
+      ((Buffer) src).position(this.offset);
+      ByteBuffer dst = memory.duplicate();
+      ((Buffer) dst).position(offset);
+      dst.put(src);
+    }
+    if (this.memory != memory) {
+      this.memory = memory;
+      this.tmpNioBuf = null;
+    }
+    this.offset = offset;
+    this.capacity = capacity;
+    this.readerIndex = readerIndex;
+    this.writerIndex = writerIndex;
+  }
+
+  /**
+   * Drops the references to the chunk memory of a released buffer, so a recycled wrapper does not
+   * keep a destroyed chunk reachable and any later access fails fast, and stops leak tracking.
+   */
+  void clearMemory() {
+    generation++;
+    this.memory = null;
+    this.tmpNioBuf = null;
+    if (leak != null) {
+      leak.close();
+      leak = null;
+    }
+  }
+
+  /**
+   * Starts reporting to {@code tracker}; buffers that own memory point it at that memory.
+   */
+  void leak(LeakDetector.Tracker tracker) {
+    this.leak = tracker;
+  }
+
+  LeakDetector.Tracker leak() {
+    return leak;
+  }
+
+  /**
+   * Written before the reference count is reset on reuse, so it is current for whoever has read a
+   * live reference count.
+   */
+  int generation() {
+    return generation;
+  }
+
+  @Override
+  public int refCnt() {
+    return refCnt;
+  }
+
+  /**
+   * For a recycled wrapper that is handed out again.
+   */
+  void resetRefCnt() {
+    REF_CNT_UPDATER.set(this, 1);
+  }
+
+  @Override
+  public ByteBuf retain() {
+    return retain(1);
+  }
+
+  @Override
+  public ByteBuf retain(int increment) {
+    if (increment < 1) {
+      throw new IllegalArgumentException("increment require > 0");
+    }
+    for (;;) {
+      int refCnt = this.refCnt;
+      if (refCnt == 0) {
+        throw new IllegalStateException("buffer already released");
+      }
+      if (refCnt > Integer.MAX_VALUE - increment) {
+        throw new IllegalStateException("refCnt: " + refCnt + " overflows by " + increment);
+      }
+      if (REF_CNT_UPDATER.compareAndSet(this, refCnt, refCnt + increment)) {
+        return this;
+      }
+    }
+  }
+
+  @Override
+  public boolean release() {
+    return release(1);
+  }
+
+  @Override
+  public boolean release(int decrement) {
+    if (releaseRefCnt(decrement)) {
+      deallocate();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Drops {@code decrement} references without deallocating.
+   *
+   * @return true if they were the last ones, in which case the caller deallocates
+   */
+  boolean releaseRefCnt(int decrement) {
+    if (decrement < 1) {
+      throw new IllegalArgumentException("decrement require > 0");
+    }
+    for (;;) {
+      int refCnt = this.refCnt;
+      if (refCnt < decrement) {
+        throw new IllegalStateException(refCnt == 0 ? "buffer already released"
+            : "refCnt: " + refCnt + " is less than " + decrement);
+      }
+      if (REF_CNT_UPDATER.compareAndSet(this, refCnt, refCnt - decrement)) {
+        return refCnt == decrement;
+      }
+    }
+  }
+
+  /**
+   * Returns the memory once the last holder has released the buffer.
+   */
+  abstract void deallocate();
+
+  /**
+   * The buffer that owns the memory and the reference count of this one.
+   */
+  AbstractByteBuf root() {
+    return this;
+  }
+
+  @Override
+  public ByteBuf slice(int index, int length) {
+    checkIndex(index, length);
+    DerivedByteBuf slice = new DerivedByteBuf(root(), memory, offset + index, length);
+    slice.writerIndex(length);
+    return slice;
+  }
+
+  @Override
+  public ByteBuf slice() {
+    return slice(readerIndex, readableBytes());
+  }
+
+  @Override
+  public ByteBuf duplicate() {
+    ensureAccessible();
+    DerivedByteBuf duplicate = new DerivedByteBuf(root(), memory, offset, capacity);
+    duplicate.writerIndex(writerIndex);
+    duplicate.readerIndex(readerIndex);
+    return duplicate;
+  }
+
+  @Override
+  public ByteBuf touch(Object hint) {
+    if (leak != null) {
+      leak.record(hint);
+    }
+    return this;
+  }
+
+  /**
+   * Fails with a reference count error, rather than a {@code NullPointerException} or a write into
+   * someone else's memory, once the buffer has been released. A composite never has memory of its
+   * own, so only then is the reference count read.
+   */
+  void ensureAccessible() {
+    if (memory == null && refCnt == 0) {
+      throw new IllegalStateException("buffer already released");
+    }
+  }
+
+  // the duplicate bulk copies go through, if one was made since the buffer got its memory
+  ByteBuffer tmpNioBuf() {
+    return tmpNioBuf;
+  }
+
+  ByteBuffer memory() {
+    return memory;
+  }
+
+  int offset() {
+    return offset;
+  }
+
+  @Override
+  public int capacity() {
+    return capacity;
+  }
+
+  @Override
+  public ByteBuf capacity(int newCapacity) {
+    throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot be resized");
+  }
+
+  @Override
+  public int maxCapacity() {
+    return capacity;
+  }
+
+  @Override
+  public ByteBuf ensureWritable(int minWritableBytes) {
+    if (minWritableBytes < 0) {
+      throw new IllegalArgumentException("minWritableBytes require >= 0");
+    }
+    if (minWritableBytes <= capacity - writerIndex) {
+      return this;
+    }
+    if (minWritableBytes > maxCapacity() - writerIndex) {
+      throw new IndexOutOfBoundsException(String.format(
+          "writerIndex(%d) + minWritableBytes(%d) exceeds maxCapacity(%d)", writerIndex,
+          minWritableBytes, maxCapacity()));
+    }
+    return capacity(writerIndex + minWritableBytes);
+  }
+
+  void checkNewCapacity(int newCapacity) {
+    ensureAccessible();
+    if (newCapacity < 1 || newCapacity > maxCapacity()) {
+      throw new IllegalArgumentException(String.format(
+          "newCapacity: %d (expected: range(1, %d))", newCapacity, maxCapacity()));
+    }
+  }
+
+  @Override
+  public boolean isDirect() {
+    ensureAccessible();
+    return memory.isDirect();
+  }
+
+  @Override
+  public boolean hasArray() {
+    ensureAccessible();
+    return memory.hasArray();
+  }
+
+  @Override
+  public byte[] array() {
+    ensureAccessible();
+    if (!memory.hasArray()) {
+      throw new UnsupportedOperationException("direct buffer");
+    }
+    return memory.array();
+  }
+
+  @Override
+  public int arrayOffset() {
+    ensureAccessible();
+    if (!memory.hasArray()) {
+      throw new UnsupportedOperationException("direct buffer");
+    }
+    return memory.arrayOffset() + offset;
+  }
+
+  @Override
+  public int readerIndex() {
+    return readerIndex;
+  }
+
+  @Override
+  public void readerIndex(int readerIndex) {
+    if (readerIndex < 0 || readerIndex > writerIndex) {
+      throw new IndexOutOfBoundsException(String.format(
+          "readerIndex: %d (expected: 0 <= readerIndex <= writerIndex(%d))",
+          readerIndex, writerIndex));
+    }
+    this.readerIndex = readerIndex;
+  }
+
+  @Override
+  public int writerIndex() {
+    return writerIndex;
+  }
+
+  @Override
+  public void writerIndex(int writerIndex) {
+    if (writerIndex < readerIndex || writerIndex > capacity) {
+      throw new IndexOutOfBoundsException(String.format(
+          "writerIndex: %d (expected: readerIndex(%d) <= writerIndex <= capacity(%d))",
+          writerIndex, readerIndex, capacity));
+    }
+    this.writerIndex = writerIndex;
+  }
+
+  @Override
+  public int readableBytes() {
+    return writerIndex - readerIndex;
+  }
+
+  @Override
+  public int writableBytes() {
+    return capacity - writerIndex;
+  }
+
+  @Override
+  public byte getByte(int index) {
+    checkIndex(index, 1);
+    return memory.get(offset + index);
+  }
+
+  @Override
+  public short getShort(int index) {
+    checkIndex(index, 2);
+    return memory.getShort(offset + index);
+  }
+
+  @Override
+  public short getShortLE(int index) {
+    return Short.reverseBytes(getShort(index));
+  }
+
+  @Override
+  public int getInt(int index) {
+    checkIndex(index, 4);
+    return memory.getInt(offset + index);
+  }
+
+  @Override
+  public int getIntLE(int index) {
+    return Integer.reverseBytes(getInt(index));
+  }
+
+  @Override
+  public long getLong(int index) {
+    checkIndex(index, 8);
+    return memory.getLong(offset + index);
+  }
+
+  @Override
+  public long getLongLE(int index) {
+    return Long.reverseBytes(getLong(index));
+  }
+
+  @Override
+  public float getFloat(int index) {
+    return Float.intBitsToFloat(getInt(index));
+  }
+
+  @Override
+  public float getFloatLE(int index) {
+    return Float.intBitsToFloat(getIntLE(index));
+  }
+
+  @Override
+  public double getDouble(int index) {
+    return Double.longBitsToDouble(getLong(index));
+  }
+
+  @Override
+  public double getDoubleLE(int index) {
+    return Double.longBitsToDouble(getLongLE(index));
+  }
+
+  @Override
+  public void getBytes(int index, byte[] dst, int dstIndex, int length) {
+    checkIndex(index, length);
+    checkArray(dst, dstIndex, length);
+    if (memory.hasArray()) {
+      System.arraycopy(memory.array(), memory.arrayOffset() + offset + index, dst, dstIndex,
+          length);
+      return;
+    }
+    internalNioBuffer(index, length).get(dst, dstIndex, length);
+  }
+
+  @Override
+  public void setByte(int index, byte value) {
+    checkIndex(index, 1);
+    memory.put(offset + index, value);
+  }
+
+  @Override
+  public void setShort(int index, short value) {
+    checkIndex(index, 2);
+    memory.putShort(offset + index, value);
+  }
+
+  @Override
+  public void setShortLE(int index, short value) {
+    setShort(index, Short.reverseBytes(value));
+  }
+
+  @Override
+  public void setInt(int index, int value) {
+    checkIndex(index, 4);
+    memory.putInt(offset + index, value);
+  }
+
+  @Override
+  public void setIntLE(int index, int value) {
+    setInt(index, Integer.reverseBytes(value));
+  }
+
+  @Override
+  public void setLong(int index, long value) {
+    checkIndex(index, 8);
+    memory.putLong(offset + index, value);
+  }
+
+  @Override
+  public void setLongLE(int index, long value) {
+    setLong(index, Long.reverseBytes(value));
+  }
+
+  @Override
+  public void setFloat(int index, float value) {
+    setInt(index, Float.floatToRawIntBits(value));
+  }
+
+  @Override
+  public void setFloatLE(int index, float value) {
+    setIntLE(index, Float.floatToRawIntBits(value));
+  }
+
+  @Override
+  public void setDouble(int index, double value) {
+    setLong(index, Double.doubleToRawLongBits(value));
+  }
+
+  @Override
+  public void setDoubleLE(int index, double value) {
+    setLongLE(index, Double.doubleToRawLongBits(value));
+  }
+
+  @Override
+  public void setBytes(int index, byte[] src, int srcIndex, int length) {
+    checkIndex(index, length);
+    checkArray(src, srcIndex, length);
+    if (memory.hasArray()) {
+      System.arraycopy(src, srcIndex, memory.array(), memory.arrayOffset() + offset + index,
+          length);
+      return;
+    }
+    internalNioBuffer(index, length).put(src, srcIndex, length);
+  }
+
+  @Override
+  public byte readByte() {
+    checkReadable(1);
+    byte value = getByte(readerIndex);
+    readerIndex += 1;
+    return value;
+  }
+
+  @Override
+  public short readShort() {
+    checkReadable(2);
+    short value = getShort(readerIndex);
+    readerIndex += 2;
+    return value;
+  }
+
+  @Override
+  public short readShortLE() {
+    checkReadable(2);
+    short value = getShortLE(readerIndex);
+    readerIndex += 2;
+    return value;
+  }
+
+  @Override
+  public int readInt() {
+    checkReadable(4);
+    int value = getInt(readerIndex);
+    readerIndex += 4;
+    return value;
+  }
+
+  @Override
+  public int readIntLE() {
+    checkReadable(4);
+    int value = getIntLE(readerIndex);
+    readerIndex += 4;
+    return value;
+  }
+
+  @Override
+  public long readLong() {
+    checkReadable(8);
+    long value = getLong(readerIndex);
+    readerIndex += 8;
+    return value;
+  }
+
+  @Override
+  public long readLongLE() {
+    checkReadable(8);
+    long value = getLongLE(readerIndex);
+    readerIndex += 8;
+    return value;
+  }
+
+  @Override
+  public float readFloat() {
+    return Float.intBitsToFloat(readInt());
+  }
+
+  @Override
+  public float readFloatLE() {
+    return Float.intBitsToFloat(readIntLE());
+  }
+
+  @Override
+  public double readDouble() {
+    return Double.longBitsToDouble(readLong());
+  }
+
+  @Override
+  public double readDoubleLE() {
+    return Double.longBitsToDouble(readLongLE());
+  }
+
+  @Override
+  public int readBytes(byte[] bytes) {
+    int length = Math.min(readableBytes(), bytes.length);
+    getBytes(readerIndex, bytes, 0, length);
+    readerIndex += length;
+    return length;
+  }
+
+  @Override
+  public void writeByte(byte b) {
+    checkWritable(1);
+    setByte(writerIndex, b);
+    writerIndex += 1;
+  }
+
+  @Override
+  public void writeShort(short value) {
+    checkWritable(2);
+    setShort(writerIndex, value);
+    writerIndex += 2;
+  }
+
+  @Override
+  public void writeShortLE(short value) {
+    checkWritable(2);
+    setShortLE(writerIndex, value);
+    writerIndex += 2;
+  }
+
+  @Override
+  public void writeInt(int value) {
+    checkWritable(4);
+    setInt(writerIndex, value);
+    writerIndex += 4;
+  }
+
+  @Override
+  public void writeIntLE(int value) {
+    checkWritable(4);
+    setIntLE(writerIndex, value);
+    writerIndex += 4;
+  }
+
+  @Override
+  public void writeLong(long value) {
+    checkWritable(8);
+    setLong(writerIndex, value);
+    writerIndex += 8;
+  }
+
+  @Override
+  public void writeLongLE(long value) {
+    checkWritable(8);
+    setLongLE(writerIndex, value);
+    writerIndex += 8;
+  }
+
+  @Override
+  public void writeFloat(float value) {
+    writeInt(Float.floatToRawIntBits(value));
+  }
+
+  @Override
+  public void writeFloatLE(float value) {
+    writeIntLE(Float.floatToRawIntBits(value));
+  }
+
+  @Override
+  public void writeDouble(double value) {
+    writeLong(Double.doubleToRawLongBits(value));
+  }
+
+  @Override
+  public void writeDoubleLE(double value) {
+    writeLongLE(Double.doubleToRawLongBits(value));
+  }
+
+  @Override
+  public int writeBytes(byte[] bytes) {
+    int length = Math.min(writableBytes(), bytes.length);
+    setBytes(writerIndex, bytes, 0, length);
+    writerIndex += length;
+    return length;
+  }
+
+  @Override
+  public void resetReaderIndex() {
+    readerIndex = 0;
+  }
+
+  @Override
+  public void resetWriterIndex() {
+    writerIndex = 0;
+  }
+
+  @Override
+  public ByteBuffer nioBuffer(int index, int length) {
+    checkIndex(index, length);
+    ByteBuffer buffer = memory.duplicate();
+    int start = offset + index;
+    ((Buffer) buffer).limit(start + length);
+    ((Buffer) buffer).position(start);
+    return buffer.slice();
+  }
+
+  @Override
+  public ByteBuffer[] nioBuffers() {
+    return new ByteBuffer[]{nioBuffer(readerIndex, readableBytes())};
+  }
+
+  /**
+   * Bulk copies need position and limit, so they go through a duplicate owned by this buffer. It
+   * is created on first use and kept for as long as the buffer stays on the same chunk.
+   */
+  private ByteBuffer internalNioBuffer(int index, int length) {
+    ByteBuffer tmpNioBuf = this.tmpNioBuf;
+    if (tmpNioBuf == null) {
+      this.tmpNioBuf = tmpNioBuf = memory.duplicate();
+    }
+    int start = offset + index;
+    ((Buffer) tmpNioBuf).limit(start + length);
+    ((Buffer) tmpNioBuf).position(start);
+    return tmpNioBuf;
+  }
+
+  void checkIndex(int index, int fieldLength) {
+    ensureAccessible();
+    if (index < 0 || fieldLength < 0 || index > capacity - fieldLength) {
+      throw new IndexOutOfBoundsException(String.format(
+          "index: %d, length: %d (expected: range(0, %d))", index, fieldLength, capacity));
+    }
+  }
+
+  private void checkArray(byte[] array, int arrayIndex, int length) {
+    if (arrayIndex < 0 || arrayIndex > array.length - length) {
+      throw new IndexOutOfBoundsException(String.format(
+          "arrayIndex: %d, length: %d (expected: range(0, %d))", arrayIndex, length,
+          array.length));
+    }
+  }
+
+  private void checkReadable(int length) {
+    if (readerIndex > writerIndex - length) {
+      throw new IndexOutOfBoundsException(String.format(
+          "readerIndex(%d) + length(%d) exceeds writerIndex(%d)", readerIndex, length,
+          writerIndex));
+    }
+  }
+
+  private void checkWritable(int length) {
+    if (writerIndex > capacity - length) {
+      throw new IndexOutOfBoundsException(String.format(
+          "writerIndex(%d) + length(%d) exceeds capacity(%d)", writerIndex, length, capacity));
+    }
+  }
+}
@@ -0,0 +1,5 @@
+package com.lonicera.alloc;
+
+interface AllocTarget {
+  void accept(PooledChunk chunk, long handle, int capacity);
+}
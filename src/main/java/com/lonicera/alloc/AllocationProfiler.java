@@ -0,0 +1,198 @@
+package com.lonicera.alloc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of allocation request sizes, one bucket per power of two, recorded by {@link
+ * MemoryAllocator} between {@link MemoryAllocator#startProfiling()} and {@link
+ * MemoryAllocator#stopProfiling()}. Left running for a while on a representative workload it
+ * recommends a configuration fitted to that workload's size distribution, which can be {@link
+ * MemoryAllocatorConfig#store(java.io.File) stored} and loaded on the next start.
+ */
+public final class AllocationProfiler {
+
+  // how much of the traffic the recommended chunk pools rather than hands to huge regions
+  private static final int POOLED_PERCENT = 99;
+  // how much of the pooled traffic the recommended thread caches cover
+  private static final int CACHED_PERCENT = 90;
+  private static final int MAX_SMALL_CACHE_COUNT = 512;
+  private static final int MAX_LARGE_CACHE_COUNT = 128;
+  private static final int MIN_CACHE_COUNT = 8;
+  private static final int MIN_CHUNK_RUNS = 64;
+  private static final int MAX_RECOMMENDED_CHUNK_SIZE = 64 * 1024 * 1024;
+
+  private final MemoryAllocator allocator;
+  // bucket i counts the requests of (2^(i-1), 2^i] bytes
+  private final LongAdder[] buckets;
+  private final long startNanos;
+  private final long lockAcquired;
+  private final long lockContended;
+
+  AllocationProfiler(MemoryAllocator allocator) {
+    this.allocator = allocator;
+    this.buckets = new LongAdder[Integer.SIZE];
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+    this.startNanos = System.nanoTime();
+    this.lockAcquired = lockAcquired(allocator);
+    this.lockContended = lockContended(allocator);
+  }
+
+  private static long lockAcquired(MemoryAllocator allocator) {
+    long sum = 0;
+    for (ArenaMetrics metrics : allocator.arenaMetrics()) {
+      sum += metrics.getLockAcquired();
+    }
+    return sum;
+  }
+
+  private static long lockContended(MemoryAllocator allocator) {
+    long sum = 0;
+    for (ArenaMetrics metrics : allocator.arenaMetrics()) {
+      sum += metrics.getLockContended();
+    }
+    return sum;
+  }
+
+  void record(int capacity, int count) {
+    buckets[Integer.SIZE - Integer.numberOfLeadingZeros(capacity - 1)].add(count);
+  }
+
+  public long allocations() {
+    long sum = 0;
+    for (LongAdder bucket : buckets) {
+      sum += bucket.sum();
+    }
+    return sum;
+  }
+
+  public long elapsedMillis() {
+    return (System.nanoTime() - startNanos) / 1_000_000;
+  }
+
+  /**
+   * @return how many requests of at most {@code 2^i} and more than half that were recorded
+   */
+  public long[] histogram() {
+    long[] histogram = new long[buckets.length];
+    for (int i = 0; i < buckets.length; i++) {
+      histogram[i] = buckets[i].sum();
+    }
+    return histogram;
+  }
+
+  /**
+   * The allocator's configuration with the chunk size, thread cache depths and arena count fitted
+   * to what was recorded so far; the configuration itself if nothing was.
+   * <ul>
+   * <li>the chunk is the smallest that still pools 99% of the requests;</li>
+   * <li>a size class family gets a thread cache as deep as its share of the requests warrants,
+   * and the cache covers sizes up to 90% of the pooled requests;</li>
+   * <li>arenas are doubled, up to twice the processors, if their locks were contended, and cut
+   * down to the number of threads caching from them if there are fewer.</li>
+   * </ul>
+   */
+  public MemoryAllocatorConfig recommend() {
+    MemoryAllocatorConfig config = allocator.config();
+    long[] histogram = histogram();
+    long total = 0;
+    for (long count : histogram) {
+      total += count;
+    }
+    if (total == 0) {
+      return config;
+    }
+
+    int runSize = config.runSize();
+    int chunkSize = Math.min(percentileSize(histogram, total, POOLED_PERCENT),
+        MAX_RECOMMENDED_CHUNK_SIZE >> 1) << 1;
+    chunkSize = Math.max(chunkSize, runSize * MIN_CHUNK_RUNS);
+
+    long tiny = 0;
+    long quantum = 0;
+    long subPage = 0;
+    long large = 0;
+    for (int i = 0; i < histogram.length; i++) {
+      long size = 1L << i;
+      if (size < config.quantumSize()) {
+        tiny += histogram[i];
+      } else if (size <= config.subPageSize() >> 1) {
+        quantum += histogram[i];
+      } else if (size < runSize) {
+        subPage += histogram[i];
+      } else if (size <= chunkSize >> 1) {
+        large += histogram[i];
+      }
+    }
+    long pooled = tiny + quantum + subPage + large;
+    int maxCachedCapacity = runSize;
+    if (pooled > 0) {
+      maxCachedCapacity = Math.max(runSize,
+          percentileSize(histogram, pooled, CACHED_PERCENT));
+    }
+    maxCachedCapacity = Math.min(maxCachedCapacity, chunkSize >> 1);
+
+    return config.toBuilder()
+        .chunkSize(chunkSize)
+        .tinyCacheCount(cacheCount(tiny, total, MAX_SMALL_CACHE_COUNT))
+        .quantumCacheCount(cacheCount(quantum, total, MAX_SMALL_CACHE_COUNT))
+        .subPageCacheCount(cacheCount(subPage, total, MAX_SMALL_CACHE_COUNT))
+        .largeCacheCount(cacheCount(large, total, MAX_LARGE_CACHE_COUNT))
+        .maxCachedCapacity(maxCachedCapacity)
+        .arenaCount(arenaCount(config))
+        .build();
+  }
+
+  /**
+   * The smallest power of two at least {@code percent}% of the first {@code total} requests, in
+   * increasing size, fit into.
+   */
+  private static int percentileSize(long[] histogram, long total, int percent) {
+    long seen = 0;
+    for (int i = 0; i < histogram.length; i++) {
+      seen += histogram[i];
+      if (seen * 100 >= total * percent) {
+        return 1 << Math.min(i, Integer.SIZE - 2);
+      }
+    }
+    return 1 << Integer.SIZE - 2;
+  }
+
+  private static int cacheCount(long count, long total, int max) {
+    int scaled = (int) Math.min(max, (count * max + total - 1) / total);
+    int cacheCount = Integer.highestOneBit(Math.max(scaled, 1));
+    if (cacheCount < scaled) {
+      cacheCount <<= 1;
+    }
+    return Math.max(MIN_CACHE_COUNT, Math.min(max, cacheCount));
+  }
+
+  private int arenaCount(MemoryAllocatorConfig config) {
+    int arenaCount = config.arenaCount();
+    long acquired = lockAcquired(allocator) - lockAcquired;
+    long contended = lockContended(allocator) - lockContended;
+    if (acquired > 0 && contended * 100 > acquired * ArenaAllocCache.CONTENDED_PERCENT) {
+      int maxArenaCount = Runtime.getRuntime().availableProcessors() << 1;
+      return Math.max(arenaCount, Math.min(arenaCount << 1, maxArenaCount));
+    }
+    int threads = allocator.boundThreadCount();
+    if (threads > 0 && threads < arenaCount) {
+      return threads;
+    }
+    return arenaCount;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("AllocationProfiler[");
+    sb.append(allocations()).append(" allocations in ").append(elapsedMillis()).append("ms");
+    long[] histogram = histogram();
+    for (int i = 0; i < histogram.length; i++) {
+      if (histogram[i] != 0) {
+        sb.append(", <=").append(1L << i).append(": ").append(histogram[i]);
+      }
+    }
+    return sb.append(']').toString();
+  }
+}
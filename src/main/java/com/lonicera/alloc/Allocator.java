@@ -2,4 +2,28 @@ package com.lonicera.alloc;
 
 public interface Allocator {
   ByteBuf alloc(int capacity);
+
+  ByteBuf alloc(int capacity, MemoryType memoryType);
+
+  /**
+   * A buffer whose first byte sits at a multiple of {@code alignment}, measured against the native
+   * address for direct and mapped memory and against the start of the backing array for heap
+   * memory.
+   *
+   * @param alignment a power of two, at most the page size of the allocator
+   */
+  ByteBuf alloc(int capacity, int alignment);
+
+  ByteBuf alloc(int capacity, int alignment, MemoryType memoryType);
+
+  /**
+   * Allocates {@code count} buffers of {@code capacity} into {@code out[0, count)}, for a caller
+   * that needs many of the same size at once.
+   */
+  void alloc(int capacity, int count, ByteBuf[] out);
+
+  /**
+   * Releases every buffer in {@code byteBufs} once, skipping {@code null} entries.
+   */
+  void releaseAll(ByteBuf[] byteBufs);
 }
@@ -1,24 +1,46 @@
 package com.lonicera.alloc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 class Arena {
 
   private static final int MIN_RUN_SIZE = 4096;
+  // 2^2 = 4 size classes per doubling above the quantum range
+  private static final int LOG2_GROUP_CLASSES = 2;
+  // longest run a small size class may use to get the waste of its run down
+  private static final int MAX_SMALL_RUN_PAGES = 8;
+  // deferred frees a releasing thread lets pile up before it tries to apply them itself
+  static final int DEFERRED_FREE_THRESHOLD = 512;
+  static final int DEFAULT_CHUNK_SIZE = 2 * 1024 * 1024;
+  static final int DEFAULT_RUN_SIZE = 4096;
+  static final int DEFAULT_SUB_PAGE_SIZE = 1024;
+  static final int DEFAULT_QUANTUM_SIZE = 16;
+  static final int DEFAULT_TINY_SIZE = 2;
+  static final int DEFAULT_RETAINED_EMPTY_CHUNKS = 1;
+  static final long DEFAULT_CHUNK_IDLE_MILLIS = 10_000;
+  static final int DEFAULT_HUGE_REGION_CHUNKS = 4;
+  static final int DEFAULT_HUGE_RETAINED_CHUNKS = 4;
+  private final MemoryAllocator parent;
+  private final ChunkSource chunkSource;
   private int chunkSize;
   private int halfChunkSize;
   private int runSize;
   private int subPageSize;
   private int halfSubPageSize;
   private int quantumSize;
-  private int halfQuantumSize;
   private int tinySize;
 
   private int log2TinySize;
   private int log2QuantumSize;
   private int log2SubPageSize;
-
-  private ArenaAllocCache allocCache;
+  private int log2RunSize;
 
   private ChunkList qInit;
   private ChunkList q0;
@@ -29,22 +51,94 @@ class Arena {
 
   private SmallAllocNode[] smallAllocs;
 
+  private HugeAllocator hugeAllocator;
+
+  private final int retainedEmptyChunks;
+  private final long chunkIdleNanos;
+  private volatile int emptyChunks;
+  // a maintenance thread trims, so chunks are destroyed by it rather than by a releasing thread
+  private boolean maintained;
+
+  private final ArenaMetrics metrics;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private volatile long lockAcquired;
+  private volatile long lockContended;
+  // written under the parent's binding lock, read by metrics from any thread
+  private volatile int boundThreads;
+
+  private final AtomicReference<PooledByteBuf> deferredFrees = new AtomicReference<>();
+  private final AtomicInteger deferredFreeCount = new AtomicInteger();
+
+  private int tinyCount;
+  private int quantumCount;
   private int quantumAllocOffset;
   private int subPageAllocOffset;
+  private int[] sizeClasses;
+  private int[] smallRunPages;
+
+  private int tinyCacheCount = ArenaAllocCache.DEFAULT_CACHE_COUNT;
+  private int quantumCacheCount = ArenaAllocCache.DEFAULT_CACHE_COUNT;
+  private int subPageCacheCount = ArenaAllocCache.DEFAULT_CACHE_COUNT;
+  private int largeCacheCount = ArenaAllocCache.DEFAULT_CACHE_COUNT;
+  private int maxCachedCapacity = ArenaAllocCache.DEFAULT_MAX_CACHED_CAPACITY;
+
+  public Arena(MemoryAllocator parent, ChunkSource chunkSource) {
+    this(parent, chunkSource, DEFAULT_RETAINED_EMPTY_CHUNKS, DEFAULT_CHUNK_IDLE_MILLIS);
+  }
+
+  public Arena(MemoryAllocator parent, ChunkSource chunkSource, int retainedEmptyChunks,
+      long chunkIdleMillis) {
+    this(
+        parent,
+        chunkSource,
+        DEFAULT_CHUNK_SIZE,
+        DEFAULT_RUN_SIZE,
+        DEFAULT_SUB_PAGE_SIZE,
+        DEFAULT_QUANTUM_SIZE,
+        DEFAULT_TINY_SIZE,
+        retainedEmptyChunks,
+        chunkIdleMillis
+    );
+  }
 
-  public Arena() {
+  public Arena(MemoryAllocator parent, ChunkSource chunkSource, MemoryAllocatorConfig config) {
     this(
-        2 * 1024 * 1024,
-        4096,
-        1024,
-        16,
-        2
+        parent,
+        chunkSource,
+        config.chunkSize(),
+        config.runSize(),
+        config.subPageSize(),
+        config.quantumSize(),
+        config.tinySize(),
+        config.retainedEmptyChunks(),
+        config.chunkIdleMillis()
     );
+    this.tinyCacheCount = config.tinyCacheCount();
+    this.quantumCacheCount = config.quantumCacheCount();
+    this.subPageCacheCount = config.subPageCacheCount();
+    this.largeCacheCount = config.largeCacheCount();
+    this.maxCachedCapacity = config.maxCachedCapacity();
+    this.maintained = config.maintenanceIntervalMillis() > 0;
+    this.hugeAllocator = newHugeAllocator(config.hugeRegionChunks(),
+        config.hugeRetainedChunks());
   }
 
-  public Arena(int chunkSize, int runSize, int subPageSize, int quantumSize, int tinySize) {
+  public Arena(MemoryAllocator parent, ChunkSource chunkSource, int chunkSize, int runSize,
+      int subPageSize, int quantumSize, int tinySize, int retainedEmptyChunks,
+      long chunkIdleMillis) {
+    this.parent = parent;
+    this.chunkSource = chunkSource;
+    if (retainedEmptyChunks < 0) {
+      throw new IllegalArgumentException("retainedEmptyChunks must >= 0");
+    }
+    if (chunkIdleMillis < 0) {
+      throw new IllegalArgumentException("chunkIdleMillis must >= 0");
+    }
+    this.retainedEmptyChunks = retainedEmptyChunks;
+    this.chunkIdleNanos = TimeUnit.MILLISECONDS.toNanos(chunkIdleMillis);
     log2PowerOfTwo(chunkSize, "chunkSize");
-    int log2RunSize = log2PowerOfTwo(runSize, "runSize");
+    this.log2RunSize = log2PowerOfTwo(runSize, "runSize");
     this.log2SubPageSize = log2PowerOfTwo(subPageSize, "minSubPageSize");
     this.log2QuantumSize = log2PowerOfTwo(quantumSize, "quantumSize");
     this.log2TinySize = log2PowerOfTwo(tinySize, "tinySize");
@@ -62,28 +156,24 @@ class Arena {
     this.subPageSize = subPageSize;
     this.halfSubPageSize = subPageSize >> 1;
     this.quantumSize = quantumSize;
-    this.halfQuantumSize = this.quantumSize >> 1;
     this.tinySize = tinySize;
 
-    int tinyCount = log2QuantumSize - log2TinySize - 1;
+    tinyCount = log2QuantumSize - log2TinySize;
     quantumAllocOffset = tinyCount;
-    int quantumCount = 1 << (log2QuantumSize - log2TinySize - 1);
+    quantumCount = halfSubPageSize / quantumSize;
     subPageAllocOffset = tinyCount + quantumCount;
-    int subPageCount = log2SubPageSize - log2QuantumSize - 1;
-
-    this.smallAllocs = new SmallAllocNode[tinyCount + quantumCount + subPageCount];
-
-    this.allocCache = new ArenaAllocCache(
-        chunkSize,
-        runSize,
-        64,
-        subPageSize,
-        64,
-        quantumSize,
-        64,
-        tinySize,
-        64
-    );
+    this.sizeClasses = sizeClasses();
+
+    int smallCount = 0;
+    while (isSmall(sizeClasses[smallCount])) {
+      smallCount++;
+    }
+    this.smallAllocs = new SmallAllocNode[smallCount];
+    this.smallRunPages = new int[smallCount];
+    for (int i = 0; i < smallCount; i++) {
+      smallAllocs[i] = new SmallAllocNode(sizeClasses[i]);
+      smallRunPages[i] = runPagesOf(sizeClasses[i]);
+    }
 
     qInit = new ChunkList("QINIT", null, null, 0, 24);
     q0 = new ChunkList("Q0", qInit, null, 1, 49);
@@ -98,125 +188,684 @@ class Arena {
     q50.next(q75);
     q75.next(q100);
 
+    this.metrics = new ArenaMetrics(this, qInit, q0, q25, q50, q75, q100);
+    this.hugeAllocator = newHugeAllocator(DEFAULT_HUGE_REGION_CHUNKS,
+        DEFAULT_HUGE_RETAINED_CHUNKS);
+  }
+
+  private HugeAllocator newHugeAllocator(int regionChunks, int retainedChunks) {
+    return new HugeAllocator(chunkSize, regionChunks * chunkSize, (long) retainedChunks * chunkSize,
+        runSize, chunkSource, metrics);
+  }
+
+  MemoryAllocator parent() {
+    return parent;
+  }
+
+  MemoryType memoryType() {
+    return chunkSource.memoryType();
+  }
+
+  ChunkSource chunkSource() {
+    return chunkSource;
+  }
+
+  ArenaMetrics metrics() {
+    return metrics;
+  }
+
+  int chunkSize() {
+    return chunkSize;
+  }
+
+  int runSize() {
+    return runSize;
+  }
+
+  boolean maintained() {
+    return maintained;
+  }
+
+  int maxCapacity() {
+    return hugeAllocator.maxCapacity();
+  }
+
+  int maxPooledCapacity() {
+    return halfChunkSize;
+  }
+
+  long reservedBytes() {
+    long pooledChunks = metrics.getChunksCreated() - metrics.getChunksDestroyed();
+    return pooledChunks * chunkSize + hugeAllocator.reservedSize();
+  }
+
+  /**
+   * Takes the arena lock, counting the acquisitions that had to wait so that {@link
+   * MemoryAllocator} can move hot threads off a contended arena.
+   */
+  void lock() {
+    if (!lock.tryLock()) {
+      lock.lock();
+      lockContended++;
+    }
+    lockAcquired++;
+    freeDeferred();
+  }
+
+  private boolean tryLock() {
+    if (!lock.tryLock()) {
+      return false;
+    }
+    lockAcquired++;
+    freeDeferred();
+    return true;
+  }
+
+  void unlock() {
+    lock.unlock();
+  }
+
+  long lockAcquired() {
+    return lockAcquired;
+  }
+
+  long lockContended() {
+    return lockContended;
+  }
+
+  int boundThreads() {
+    return boundThreads;
+  }
+
+  void bind() {
+    boundThreads++;
+  }
+
+  void unbind() {
+    boundThreads--;
+  }
+
+  ArenaAllocCache newAllocCache(Thread thread) {
+    return new ArenaAllocCache(
+        this,
+        thread,
+        largeCacheCount,
+        subPageCacheCount,
+        quantumCacheCount,
+        tinyCacheCount,
+        maxCachedCapacity
+    );
+  }
+
+  private int[] sizeClasses() {
+    List<Integer> classes = new ArrayList<>();
+    for (int capacity = tinySize; capacity <= halfChunkSize; capacity = alignCapacity(capacity + 1)) {
+      classes.add(capacity);
+    }
+    int[] sizeClasses = new int[classes.size()];
+    for (int i = 0; i < sizeClasses.length; i++) {
+      sizeClasses[i] = classes.get(i);
+    }
+    return sizeClasses;
+  }
+
+  /**
+   * Pages of the runs a small size class is carved from: the fewest pages whose remainder after
+   * the last slot is under 1/32 of the run, e.g. three pages for 640 bytes instead of one page
+   * that loses 256 bytes. Falls back to the least wasteful run of at most {@link
+   * #MAX_SMALL_RUN_PAGES} pages.
+   */
+  private int runPagesOf(int alignCapacity) {
+    int bestPages = 1;
+    int bestWaste = runSize % alignCapacity;
+    for (int pages = 1; pages <= MAX_SMALL_RUN_PAGES; pages++) {
+      int runBytes = pages << log2RunSize;
+      int waste = runBytes % alignCapacity;
+      if (waste <= runBytes >> 5) {
+        return pages;
+      }
+      if ((long) waste * (bestPages << log2RunSize) < (long) bestWaste * runBytes) {
+        bestPages = pages;
+        bestWaste = waste;
+      }
+    }
+    return bestPages;
   }
 
   SmallAllocNode smallAllocHead(int alignCapacity) {
-    int log2Align = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(alignCapacity);
-    int index;
+    return smallAllocs[sizeIndex(alignCapacity)];
+  }
+
+  int smallRunPages(int sizeIndex) {
+    return smallRunPages[sizeIndex];
+  }
+
+  int sizeIndex(int alignCapacity) {
     if (alignCapacity < quantumSize) {
-      index = log2Align - log2TinySize;
-    } else if (alignCapacity < subPageSize) {
-      index = quantumAllocOffset + 1 << (log2Align - log2QuantumSize);
+      int log2Align = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(alignCapacity);
+      return log2Align - log2TinySize;
+    } else if (alignCapacity <= halfSubPageSize) {
+      return quantumAllocOffset + alignCapacity / quantumSize - 1;
     } else {
-      index = subPageAllocOffset + log2Align - log2SubPageSize;
+      return Arrays.binarySearch(sizeClasses, subPageAllocOffset, sizeClasses.length,
+          alignCapacity);
     }
+  }
 
-    SmallAllocNode head = smallAllocs[index];
-    if (head != null) {
-      return head;
-    }
-    synchronized (smallAllocs) {
-      smallAllocs[index] = new SmallAllocNode(
-          null,
-          null,
-          0,
-          0,
-          0,
-          null,
-          0,
-          alignCapacity
-      );
-      return smallAllocs[index];
+  int sizeCapacity(int sizeIndex) {
+    return sizeClasses[sizeIndex];
+  }
+
+  /**
+   * Small size classes are slots of a run; everything from a page up to half a chunk is a run of
+   * its own.
+   */
+  boolean isSmall(int alignCapacity) {
+    return alignCapacity < runSize;
+  }
+
+  boolean isTiny(int alignCapacity) {
+    return alignCapacity < quantumSize;
+  }
+
+  boolean isQuantum(int alignCapacity) {
+    return alignCapacity >= quantumSize && alignCapacity <= halfSubPageSize;
+  }
+
+  boolean isSubPage(int alignCapacity) {
+    return alignCapacity > halfSubPageSize && alignCapacity < runSize;
+  }
+
+  SizeClass sizeClass(int alignCapacity) {
+    if (isTiny(alignCapacity)) {
+      return SizeClass.TINY;
+    } else if (isQuantum(alignCapacity)) {
+      return SizeClass.QUANTUM;
+    } else if (isSubPage(alignCapacity)) {
+      return SizeClass.SUB_PAGE;
+    } else if (alignCapacity <= halfChunkSize) {
+      return SizeClass.LARGE;
+    } else {
+      return SizeClass.HUGE;
     }
   }
 
-  public ByteBuf alloc(int capacity) {
+  public ByteBuf alloc(ArenaAllocCache allocCache, int capacity) {
+    return alloc(allocCache, capacity, 1);
+  }
+
+  /**
+   * @param alignment power of two, at most {@code runSize}, the buffer's memory address must be a
+   * multiple of
+   */
+  public ByteBuf alloc(ArenaAllocCache allocCache, int capacity, int alignment) {
 
     if (capacity > halfChunkSize) {
       return allocHuge(capacity);
     }
 
+    int alignCapacity = alignCapacity(capacity, alignment);
+    int sizeIndex = sizeIndex(alignCapacity);
+    metrics.allocated(sizeClass(alignCapacity), alignCapacity);
+
+    PooledByteBuf byteBuf = ByteBufRecycler.get();
+    byteBuf.alignment(alignment);
+
+    if (allocCache != null && allocCache.alloc(byteBuf, sizeIndex)) {
+      return byteBuf;
+    }
+
+    if (isSmall(alignCapacity)) {
+      if (allocSmall(smallAllocs[sizeIndex], byteBuf, 1) == 1) {
+        return byteBuf;
+      }
+    }
+
+    lock();
+    try {
+      allocNormal(byteBuf, alignCapacity);
+      return byteBuf;
+    } finally {
+      unlock();
+    }
+
+  }
+
+  /**
+   * Allocates {@code count} buffers of {@code capacity} into {@code out[0, count)}: from the thread
+   * cache as far as it reaches, and the rest under a single acquisition of the arena lock.
+   */
+  void alloc(ArenaAllocCache allocCache, int capacity, ByteBuf[] out, int count) {
+    if (capacity > halfChunkSize) {
+      for (int i = 0; i < count; i++) {
+        out[i] = allocHuge(capacity);
+      }
+      return;
+    }
     int alignCapacity = alignCapacity(capacity);
+    int sizeIndex = sizeIndex(alignCapacity);
+    SizeClass sizeClass = sizeClass(alignCapacity);
+    for (int i = 0; i < count; i++) {
+      metrics.allocated(sizeClass, alignCapacity);
+    }
+    BulkTarget target = new BulkTarget(out);
+    if (allocCache != null) {
+      allocCache.alloc(target, sizeIndex, count);
+    }
+    if (target.count < count) {
+      fill(target, sizeIndex, count - target.count);
+    }
+  }
 
-    synchronized (allocCache) {
-      PooledByteBuf cache = allocCache.alloc(alignCapacity);
-      if (cache != null) {
-        cache.cycle();
-        return cache;
+  void fill(AllocTarget target, int sizeIndex, int count) {
+    int alignCapacity = sizeCapacity(sizeIndex);
+    SmallAllocNode head = isSmall(alignCapacity) ? smallAllocs[sizeIndex] : null;
+    int filled = head == null ? 0 : allocSmall(head, target, count);
+    if (filled == count) {
+      return;
+    }
+    lock();
+    try {
+      while (filled < count) {
+        int allocated = head == null ? 0 : allocSmall(head, target, count - filled);
+        if (allocated == 0) {
+          allocNormal(target, alignCapacity);
+          allocated = 1;
+        }
+        filled += allocated;
+      }
+    } finally {
+      unlock();
+    }
+  }
+
+  private int allocSmall(SmallAllocNode head, AllocTarget target, int count) {
+    synchronized (head) {
+      int allocated = 0;
+      while (allocated < count) {
+        SmallAllocNode node = head.next();
+        if (node == head || !node.alloc(target)) {
+          break;
+        }
+        allocated++;
       }
+      return allocated;
     }
+  }
 
-    PooledByteBuf byteBuf = new PooledByteBuf();
+  private void allocNormal(AllocTarget target, int alignCapacity) {
+    if (q50.alloc(target, alignCapacity)) {
+      return;
+    }
+    if (q25.alloc(target, alignCapacity)) {
+      return;
+    }
+    if (q0.alloc(target, alignCapacity)) {
+      return;
+    }
+    if (qInit.alloc(target, alignCapacity)) {
+      return;
+    }
+    if (q75.alloc(target, alignCapacity)) {
+      return;
+    }
 
-    if (alignCapacity < runSize) {
-      SmallAllocNode head = smallAllocHead(alignCapacity);
-      if (head.next() != null) {
-        synchronized (head) {
-          boolean success = head.next().alloc(byteBuf, alignCapacity);
-          if (success) {
-            return byteBuf;
-          }
+    PooledChunk pooledChunk = new PooledChunk(this, chunkSize, runSize, qInit);
+    metrics.chunkCreated();
+
+    qInit.add(pooledChunk);
+
+    boolean success = pooledChunk.alloc(target, alignCapacity);
+
+    if (!success) {
+      throw new Error(); // should never happen
+    }
+  }
+
+  /**
+   * Resizes a buffer without moving it: trivially if the size class stays the same, and for a
+   * large run by taking the free pages that follow it or giving back its tail.
+   *
+   * @return false if the buffer has to move
+   */
+  boolean resize(PooledByteBuf byteBuf, int newCapacity) {
+    int oldCapacity = byteBuf.capacity();
+    int alignCapacity = alignCapacity(newCapacity, byteBuf.alignment());
+    if (alignCapacity != oldCapacity) {
+      if (isSmall(oldCapacity) || isSmall(alignCapacity)) {
+        return false;
+      }
+      lock();
+      try {
+        if (!byteBuf.chunk().resizeRun(byteBuf.handle(), alignCapacity >> log2RunSize)) {
+          return false;
         }
+      } finally {
+        unlock();
       }
+      metrics.freed(sizeClass(oldCapacity), oldCapacity);
+      metrics.allocated(sizeClass(alignCapacity), alignCapacity);
     }
+    byteBuf.moveMemory(byteBuf.memory(), byteBuf.offset(), alignCapacity);
+    return true;
+  }
 
-    synchronized (this) {
-      if (q50.alloc(byteBuf, alignCapacity)) {
-        return byteBuf;
+  void free(PooledByteBuf byteBuf) {
+    int alignCapacity = byteBuf.capacity();
+    metrics.freed(sizeClass(alignCapacity), alignCapacity);
+    ArenaAllocCache allocCache = parent.striped() ? null : parent.threadAllocCache(memoryType());
+    if (allocCache == null) {
+      freeUncached(byteBuf);
+      return;
+    }
+    if (allocCache.arena() != this) {
+      deferFree(byteBuf);
+      return;
+    }
+    PooledChunk chunk = byteBuf.chunk();
+    long handle = byteBuf.handle();
+    if (!allocCache.cache(chunk, handle, sizeIndex(alignCapacity))) {
+      lock();
+      try {
+        chunk.release(handle);
+      } finally {
+        unlock();
       }
-      if (q25.alloc(byteBuf, alignCapacity)) {
-        return byteBuf;
+    }
+    byteBuf.recycle();
+  }
+
+  /**
+   * Frees {@code byteBufs[from, to)}, all released and all of this arena, as {@link
+   * #free(PooledByteBuf)} would one at a time, except that whatever the thread cache does not take
+   * is released under a single acquisition of the arena lock. The range may be reordered.
+   */
+  void free(PooledByteBuf[] byteBufs, int from, int to) {
+    for (int i = from; i < to; i++) {
+      int alignCapacity = byteBufs[i].capacity();
+      metrics.freed(sizeClass(alignCapacity), alignCapacity);
+    }
+    int uncached = to;
+    ArenaAllocCache allocCache = parent.striped() ? null : parent.threadAllocCache(memoryType());
+    if (allocCache == null) {
+      if (!tryLock()) {
+        deferFree(byteBufs, from, to);
+        return;
       }
-      if (q0.alloc(byteBuf, alignCapacity)) {
-        return byteBuf;
+    } else if (allocCache.arena() != this) {
+      deferFree(byteBufs, from, to);
+      return;
+    } else {
+      uncached = from;
+      for (int i = from; i < to; i++) {
+        PooledByteBuf byteBuf = byteBufs[i];
+        if (allocCache.cache(byteBuf.chunk(), byteBuf.handle(),
+            sizeIndex(byteBuf.capacity()))) {
+          byteBuf.recycle();
+        } else {
+          byteBufs[uncached++] = byteBuf;
+        }
       }
-      if (qInit.alloc(byteBuf, alignCapacity)) {
-        return byteBuf;
+      if (uncached == from) {
+        return;
       }
-      if (q75.alloc(byteBuf, alignCapacity)) {
-        return byteBuf;
+      lock();
+    }
+    try {
+      for (int i = from; i < uncached; i++) {
+        PooledChunk chunk = byteBufs[i].chunk();
+        chunk.beginRelease();
+        chunk.release(byteBufs[i].handle());
+      }
+      for (int i = from; i < uncached; i++) {
+        byteBufs[i].chunk().endRelease();
       }
+    } finally {
+      unlock();
+    }
+    for (int i = from; i < uncached; i++) {
+      byteBufs[i].recycle();
+    }
+  }
+
+  private void deferFree(PooledByteBuf[] byteBufs, int from, int to) {
+    for (int i = from; i < to; i++) {
+      deferFree(byteBufs[i]);
+    }
+  }
 
-      PooledChunk pooledChunk = new PooledChunk(this, chunkSize, runSize, qInit, allocCache);
+  /**
+   * A thread without a cache, because arenas are striped or because it has never allocated, may
+   * free into any arena, so such a free never waits: it releases under the lock if the lock is
+   * free and otherwise leaves the buffer to the lock holder.
+   */
+  private void freeUncached(PooledByteBuf byteBuf) {
+    if (!tryLock()) {
+      deferFree(byteBuf);
+      return;
+    }
+    try {
+      byteBuf.chunk().release(byteBuf.handle());
+    } finally {
+      unlock();
+    }
+    byteBuf.recycle();
+  }
 
-      boolean success = pooledChunk.alloc(byteBuf, alignCapacity);
+  /**
+   * Gives back the memory of a buffer that was garbage collected without being released. The
+   * buffer is gone, so there is no wrapper to recycle, and the calling thread may belong to any
+   * arena, so the memory skips the thread caches.
+   */
+  void reclaim(PooledChunk chunk, long handle, int capacity) {
+    metrics.freed(sizeClass(capacity), capacity);
+    lock();
+    try {
+      chunk.release(handle);
+    } finally {
+      unlock();
+    }
+  }
 
-      qInit.add(pooledChunk);
+  /**
+   * A thread bound to another arena never waits for this arena's lock: it pushes the buffer onto a
+   * lock-free list, linked through the buffers themselves, which whoever takes the lock next
+   * applies in one batch. Only once the list has grown long does the releasing thread try the lock
+   * itself, and then only if it is free.
+   */
+  private void deferFree(PooledByteBuf byteBuf) {
+    PooledByteBuf head;
+    do {
+      head = deferredFrees.get();
+      byteBuf.deferredNext = head;
+    } while (!deferredFrees.compareAndSet(head, byteBuf));
+    if (deferredFreeCount.incrementAndGet() >= DEFERRED_FREE_THRESHOLD && tryLock()) {
+      unlock();
+    }
+  }
 
-      if (success) {
-        return byteBuf;
+  // under the arena lock
+  private void freeDeferred() {
+    if (deferredFrees.get() == null) {
+      return;
+    }
+    PooledByteBuf byteBuf = deferredFrees.getAndSet(null);
+    int count = 0;
+    while (byteBuf != null) {
+      PooledByteBuf next = byteBuf.deferredNext;
+      byteBuf.deferredNext = null;
+      byteBuf.chunk().release(byteBuf.handle());
+      byteBuf.recycle();
+      byteBuf = next;
+      count++;
+    }
+    deferredFreeCount.addAndGet(-count);
+  }
+
+  /**
+   * Releases a batch of entries under one lock acquisition, moving each chunk involved between the
+   * usage lists once rather than once per entry.
+   */
+  void free(PooledChunk[] chunks, long[] handles, int count) {
+    lock();
+    try {
+      for (int i = 0; i < count; i++) {
+        chunks[i].beginRelease();
+        chunks[i].release(handles[i]);
       }
-      throw new Error(); // should never happen
+      for (int i = 0; i < count; i++) {
+        chunks[i].endRelease();
+      }
+    } finally {
+      unlock();
     }
+  }
 
+  /**
+   * Called under the arena lock when a release leaves a chunk with nothing allocated. Up to
+   * {@code retainedEmptyChunks} such chunks are kept around to absorb the next burst; any further
+   * one is destroyed on the spot, or on the next round of the maintenance thread if there is one.
+   */
+  void chunkEmptied(PooledChunk chunk) {
+    if (emptyChunks >= retainedEmptyChunks && !maintained) {
+      destroyChunk(chunk);
+      return;
+    }
+    emptyChunks++;
+    chunk.idle(System.nanoTime());
   }
 
-  private ByteBuf allocHuge(int capacity) {
-    Chunk chunk = new UnpooledChunk(capacity);
-    return new UnpooledByteBuf(chunk);
+  void chunkReused(PooledChunk chunk) {
+    emptyChunks--;
   }
 
-  private int alignCapacity(int capacity) {
-    if (capacity > halfQuantumSize && capacity <= halfSubPageSize) {
-      int remain = capacity % quantumSize;
-      if (remain != 0) {
-        return quantumSize * (capacity / quantumSize + 1);
-      } else {
-        return capacity;
+  /**
+   * Applies the frees deferred by other threads and destroys the retained empty chunks and huge
+   * regions that have not been reused for {@code chunkIdleMillis}.
+   */
+  void trim() {
+    trim(false);
+  }
+
+  /**
+   * @param pressure destroy every retained empty chunk and huge region, however recently it
+   * emptied
+   */
+  void trim(boolean pressure) {
+    hugeAllocator.trim(pressure ? 0 : chunkIdleNanos);
+    if (emptyChunks == 0 && deferredFrees.get() == null) {
+      return;
+    }
+    // taking the lock applies the deferred frees
+    lock();
+    try {
+      long now = System.nanoTime();
+      // empty chunks always sink down to QINIT
+      for (PooledChunk chunk : qInit.chunks()) {
+        if (chunk.idle() && (pressure || emptyChunks > retainedEmptyChunks
+            || now - chunk.idleSince() >= chunkIdleNanos)) {
+          emptyChunks--;
+          destroyChunk(chunk);
+        }
       }
+    } finally {
+      unlock();
     }
+  }
 
-    if (capacity < tinySize) {
+  /**
+   * Copies the buddy trees and the slot counts of the small runs under the arena lock, and the
+   * small runs of a size class under its head monitor as well, then works out the rest unlocked.
+   */
+  FragmentationSnapshot.ArenaFragmentation fragmentation(int index) {
+    List<PooledChunk> chunks = new ArrayList<>();
+    List<byte[]> trees = new ArrayList<>();
+    List<Integer> allocatedSizes = new ArrayList<>();
+    int[] runs = new int[smallAllocs.length];
+    int[] slots = new int[smallAllocs.length];
+    int[] usedSlots = new int[smallAllocs.length];
+    lock();
+    try {
+      for (ChunkList chunkList : new ChunkList[]{qInit, q0, q25, q50, q75, q100}) {
+        for (PooledChunk chunk : chunkList.chunks()) {
+          chunks.add(chunk);
+          trees.add(chunk.copyTree());
+          allocatedSizes.add(chunk.allocatedSize());
+        }
+      }
+      for (int i = 0; i < smallAllocs.length; i++) {
+        SmallAllocNode head = smallAllocs[i];
+        synchronized (head) {
+          for (SmallAllocNode node = head.next(); node != head; node = node.next()) {
+            runs[i]++;
+            slots[i] += node.totalCount();
+            usedSlots[i] += node.totalCount() - node.freeCount();
+          }
+        }
+      }
+    } finally {
+      unlock();
+    }
+    List<FragmentationSnapshot.ChunkFragmentation> chunkFragmentations = new ArrayList<>();
+    for (int i = 0; i < chunks.size(); i++) {
+      chunkFragmentations.add(chunks.get(i).fragmentation(trees.get(i), allocatedSizes.get(i)));
+    }
+    List<FragmentationSnapshot.SizeClassOccupancy> occupancies = new ArrayList<>();
+    for (int i = 0; i < smallAllocs.length; i++) {
+      if (runs[i] > 0) {
+        occupancies.add(new FragmentationSnapshot.SizeClassOccupancy(sizeClasses[i], runs[i],
+            (long) runs[i] * smallRunPages[i] << log2RunSize, slots[i], usedSlots[i]));
+      }
+    }
+    return new FragmentationSnapshot.ArenaFragmentation(memoryType(), index,
+        metrics.getUsedBytes(), hugeAllocator.reservedSize(), chunkFragmentations, occupancies);
+  }
+
+  private void destroyChunk(PooledChunk chunk) {
+    chunk.destroy();
+    metrics.chunkDestroyed();
+  }
+
+  private ByteBuf allocHuge(int capacity) {
+    UnpooledChunk chunk = hugeAllocator.alloc(capacity);
+    return new UnpooledByteBuf(chunk, chunk.offset(), capacity);
+  }
+
+  /**
+   * Rounds a request up to its size class: powers of two below the quantum, multiples of the
+   * quantum up to half a sub-page, then four classes per doubling, e.g. 640, 768, 896, 1024. Above
+   * a page the classes are also whole numbers of pages, so a 40K request takes a 40K run rather
+   * than a 64K one.
+   */
+  int alignCapacity(int capacity) {
+    if (capacity <= tinySize) {
       return tinySize;
     }
+    if (capacity < quantumSize) {
+      return 1 << (Integer.SIZE - Integer.numberOfLeadingZeros(capacity - 1));
+    }
+    if (capacity <= halfSubPageSize) {
+      return (capacity + quantumSize - 1) & -quantumSize;
+    }
+    int log2Group = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(capacity - 1);
+    int delta = 1 << (log2Group - LOG2_GROUP_CLASSES);
+    if (capacity > runSize && delta < runSize) {
+      delta = runSize;
+    }
+    return (capacity + delta - 1) & -delta;
+  }
 
-    int offset = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(capacity);
-    int align = 1 << offset;
-    if (align >= capacity) {
-      return align;
-    } else {
-      return align << 1;
+  /**
+   * The smallest size class that holds {@code capacity} and is a multiple of {@code alignment}.
+   * Runs start on page boundaries, so every slot of such a class is aligned and the cost of the
+   * alignment is the padding up to that class, e.g. 640 rather than 600 bytes for 128.
+   */
+  int alignCapacity(int capacity, int alignment) {
+    int alignCapacity = alignCapacity(Math.max(capacity, alignment));
+    while ((alignCapacity & (alignment - 1)) != 0) {
+      alignCapacity = alignCapacity(alignCapacity + 1);
     }
+    return alignCapacity;
   }
 
   private int log2PowerOfTwo(int num, String fieldName) {
@@ -232,7 +881,7 @@ class Arena {
 
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    sb.append("Arena@" + Objects.hash(this) + "\r\n");
+    sb.append("Arena@" + Objects.hash(this) + "[" + memoryType() + "]\r\n");
     sb.append(qInit + "\r\n");
     sb.append(q0 + "\r\n");
     sb.append(q25 + "\r\n");
@@ -241,4 +890,25 @@ class Arena {
     sb.append(q100 + "\r\n");
     return sb.toString();
   }
+
+  /**
+   * Wraps each allocation of a batch in a recycled buffer and appends it to an array.
+   */
+  private static final class BulkTarget implements AllocTarget {
+
+    private final ByteBuf[] out;
+    private int count;
+
+    BulkTarget(ByteBuf[] out) {
+      this.out = out;
+    }
+
+    @Override
+    public void accept(PooledChunk chunk, long handle, int capacity) {
+      PooledByteBuf byteBuf = ByteBufRecycler.get();
+      byteBuf.alignment(1);
+      byteBuf.accept(chunk, handle, capacity);
+      out[count++] = byteBuf;
+    }
+  }
 }
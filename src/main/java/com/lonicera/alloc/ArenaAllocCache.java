@@ -1,162 +1,351 @@
 package com.lonicera.alloc;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Per-thread magazines in front of an {@link Arena}, in the spirit of jemalloc's tcache. Only the
+ * owning thread touches them; misses fill and overflows flush in batches under one arena lock.
+ *
+ * A thread that parks keeps its magazines, so the {@link ThreadCacheSweeper} flushes the cache of
+ * an owner that has not used it for a while. The two never touch the magazines at once: each
+ * operation of the owner takes them by a CAS on {@code state}, and so does the flush; whoever
+ * loses goes to the arena directly or tries again on the next sweep.
+ */
 public class ArenaAllocCache {
 
-  private class ByteBufQueue {
+  private static final AtomicIntegerFieldUpdater<ArenaAllocCache> STATE_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(ArenaAllocCache.class, "state");
+
+  private static final int FREE = 0;
+  private static final int OWNED = 1;
+  private static final int RECLAIMING = 2;
+
+  static final int TRIM_INTERVAL = 8192;
+
+  static final int CONTENDED_PERCENT = 10;
+
+  static final int DEFAULT_CACHE_COUNT = 64;
+
+  static final int DEFAULT_MAX_CACHED_CAPACITY = 32 * 1024;
+
+  static final long DEFAULT_IDLE_MILLIS = 10_000;
+
+  static final class Magazine implements AllocTarget {
 
-    private PooledByteBuf[] bufs;
+    private final int sizeIndex;
+    private final int capacity;
+    private final int fillCount;
+    private final PooledChunk[] chunks;
+    private final long[] handles;
     private int size;
-    private int takeIndex = 0;
-    private int putIndex = 0;
+    private int lowWater;
 
-    public ByteBufQueue(int size) {
-      if (size <= 0) {
+    Magazine(int sizeIndex, int capacity, int fillCount) {
+      if (capacity <= 0) {
         throw new IllegalArgumentException("size require > 0");
       }
-      this.size = size;
-      bufs = new PooledByteBuf[size];
+      this.sizeIndex = sizeIndex;
+      this.capacity = capacity;
+      this.fillCount = fillCount;
+      this.chunks = new PooledChunk[capacity];
+      this.handles = new long[capacity];
     }
 
-    public PooledByteBuf poll() {
-      if (takeIndex >= size) {
-        takeIndex = takeIndex % size;
-      }
-      if (takeIndex < putIndex) {
-        PooledByteBuf byteBuf = bufs[takeIndex];
-        takeIndex++;
-        return byteBuf;
-      } else {
-        return null;
-      }
+    @Override
+    public void accept(PooledChunk chunk, long handle, int capacity) {
+      chunks[size] = chunk;
+      handles[size] = handle;
+      size++;
     }
 
-    public boolean offer(PooledByteBuf byteBuf) {
-      if (putIndex >= size) {
-        putIndex = putIndex % size;
-        if (putIndex > takeIndex) {
-          return false;
-        }
-      }
-      bufs[putIndex] = byteBuf;
-      putIndex++;
-      return true;
+    boolean isFull() {
+      return size == capacity;
     }
-
   }
 
-  private ByteBufQueue[] largeCaches;
-  private ByteBufQueue[] subPageCaches;
-  private ByteBufQueue[] quantumCaches;
-  private ByteBufQueue[] tinyCaches;
-
-  private int runSize;
-  private int log2RunSize;
-  private int subPageSize;
-  private int log2SubPageSize;
-  private int quantumSize;
-  private int tinySize;
-  private int log2TinySize;
+  private final Arena arena;
+  private final Thread thread;
+  private final Magazine[] magazines;
+  private int allocations;
+  private boolean freed;
+  private long lockAcquired;
+  private long lockContended;
+  // set by the maintenance thread under memory pressure, acted on by the owner
+  private volatile boolean trimRequested;
+  private volatile int state;
+  // bumped by the owner on every operation, so the sweeper can tell whether it is still active
+  private int operations;
+  // the sweeper's view of the owner's activity, only touched under the lock of the cache list
+  private int sweptOperations;
+  private long lastActivity = System.nanoTime();
 
   public ArenaAllocCache(
-      int chunkSize,
-      int runSize,
+      Arena arena,
+      Thread thread,
       int largeCacheCount,
-      int subPageSize,
       int subPageCacheCount,
-      int quantumSize,
       int quantumCacheCount,
-      int tinySize,
-      int tinyCacheCount
+      int tinyCacheCount,
+      int maxCachedCapacity
   ) {
-    int largeLevelCount = diffLog2(runSize, chunkSize);
-    largeCaches = initByteBufCache(largeLevelCount, largeCacheCount);
-    int subPageLevelCount = diffLog2(subPageSize, runSize);
-    subPageCaches = initByteBufCache(subPageLevelCount, subPageCacheCount);
-    int quantumLevelCount = diffMultiply2(quantumSize, subPageSize);
-    quantumCaches = initByteBufCache(quantumLevelCount, quantumCacheCount);
-    int tinyLevelCount = diffLog2(tinySize, quantumSize);
-    tinyCaches = initByteBufCache(tinyLevelCount, tinyCacheCount);
-    this.runSize = runSize;
-    this.log2RunSize = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(runSize);
-    this.subPageSize = subPageSize;
-    this.log2SubPageSize = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(subPageSize);
-    this.quantumSize = quantumSize;
-    this.tinySize = tinySize;
-    this.log2TinySize = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(tinySize);
+    this.arena = arena;
+    this.thread = thread;
+    this.lockAcquired = arena.lockAcquired();
+    this.lockContended = arena.lockContended();
+    int maxCachedIndex = arena.sizeIndex(arena.alignCapacity(maxCachedCapacity));
+    this.magazines = new Magazine[maxCachedIndex + 1];
+    for (int i = 0; i < magazines.length; i++) {
+      int capacity = arena.sizeCapacity(i);
+      if (arena.isTiny(capacity)) {
+        magazines[i] = new Magazine(i, tinyCacheCount, tinyCacheCount >> 1);
+      } else if (arena.isQuantum(capacity)) {
+        magazines[i] = new Magazine(i, quantumCacheCount, quantumCacheCount >> 1);
+      } else if (arena.isSubPage(capacity)) {
+        magazines[i] = new Magazine(i, subPageCacheCount, subPageCacheCount >> 1);
+      } else {
+        // large runs are expensive to hold speculatively, so they are cached on free only
+        magazines[i] = new Magazine(i, largeCacheCount, 0);
+      }
+    }
+  }
+
+  Arena arena() {
+    return arena;
+  }
+
+  Thread thread() {
+    return thread;
+  }
+
+  public boolean alloc(PooledByteBuf byteBuf, int sizeIndex) {
+    if (!acquire()) {
+      return false;
+    }
+    try {
+      boolean cached = allocFromMagazine(byteBuf, sizeIndex);
+      allocated(1);
+      return cached;
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Hands up to {@code count} cached entries of the size class to {@code target}, without filling
+   * the magazine, as the caller allocates the rest in one batch anyway.
+   *
+   * @return how many entries were handed out
+   */
+  int alloc(AllocTarget target, int sizeIndex, int count) {
+    if (!acquire()) {
+      return 0;
+    }
+    try {
+      return allocFromMagazine(target, sizeIndex, count);
+    } finally {
+      release();
+    }
   }
 
-  private ByteBufQueue[] initByteBufCache(int levelCount, int cacheCount) {
-    ByteBufQueue[] queues = new ByteBufQueue[levelCount];
-    for (int i = 0; i < levelCount; i++) {
-      queues[i] = new ByteBufQueue(cacheCount);
+  private int allocFromMagazine(AllocTarget target, int sizeIndex, int count) {
+    int taken = 0;
+    if (sizeIndex < magazines.length) {
+      Magazine magazine = magazines[sizeIndex];
+      int capacity = arena.sizeCapacity(sizeIndex);
+      while (taken < count && magazine.size > 0) {
+        magazine.size--;
+        PooledChunk chunk = magazine.chunks[magazine.size];
+        magazine.chunks[magazine.size] = null;
+        target.accept(chunk, magazine.handles[magazine.size], capacity);
+        arena.metrics().cacheHit();
+        taken++;
+      }
+      if (magazine.size < magazine.lowWater) {
+        magazine.lowWater = magazine.size;
+      }
+    }
+    if (taken < count) {
+      arena.metrics().cacheMiss();
     }
-    return queues;
+    allocated(count);
+    return taken;
   }
 
-  private int diffMultiply2(int quantumSize, int subPageSize) {
-    int diff = 0;
-    while (quantumSize < subPageSize) {
-      diff++;
-      quantumSize = quantumSize * diff;
+  /**
+   * Every {@link #TRIM_INTERVAL} allocations the owner trims its magazines and checks its arena
+   * for contention, and trims the arena as well unless a maintenance thread does that off the
+   * allocation path. A trim the maintenance thread requests only flushes the magazines.
+   */
+  private void allocated(int count) {
+    allocations += count;
+    if (allocations >= TRIM_INTERVAL) {
+      allocations = 0;
+      trimRequested = false;
+      trim();
+      if (!arena.maintained()) {
+        arena.trim();
+      }
+      if (arenaContended()) {
+        arena.parent().rebalance(this);
+      }
+    } else if (trimRequested) {
+      trimRequested = false;
+      trim();
     }
-    return diff - 1;
   }
 
-  private int diffLog2(int startSize, int targetSize) {
-    int diff = 0;
-    while (startSize < targetSize) {
-      diff += 1;
-      startSize = startSize << 1;
+  private boolean allocFromMagazine(PooledByteBuf byteBuf, int sizeIndex) {
+    if (sizeIndex >= magazines.length) {
+      return false;
+    }
+    Magazine magazine = magazines[sizeIndex];
+    if (magazine.size == 0) {
+      arena.metrics().cacheMiss();
+      if (magazine.fillCount == 0) {
+        return false;
+      }
+      arena.fill(magazine, magazine.sizeIndex, magazine.fillCount);
+    } else {
+      arena.metrics().cacheHit();
+    }
+    magazine.size--;
+    PooledChunk chunk = magazine.chunks[magazine.size];
+    long handle = magazine.handles[magazine.size];
+    magazine.chunks[magazine.size] = null;
+    if (magazine.size < magazine.lowWater) {
+      magazine.lowWater = magazine.size;
     }
-    return diff;
+    byteBuf.accept(chunk, handle, arena.sizeCapacity(sizeIndex));
+    return true;
   }
 
-  public boolean cache(PooledByteBuf byteBuf, int capacity) {
-    if(1 > 0){
+  /**
+   * Whether more than {@link #CONTENDED_PERCENT} of the arena's lock acquisitions had to wait
+   * since this thread last looked.
+   */
+  private boolean arenaContended() {
+    long acquired = arena.lockAcquired();
+    long contended = arena.lockContended();
+    long acquiredDelta = acquired - lockAcquired;
+    long contendedDelta = contended - lockContended;
+    lockAcquired = acquired;
+    lockContended = contended;
+    return acquiredDelta > 0 && contendedDelta * 100 > acquiredDelta * CONTENDED_PERCENT;
+  }
+
+  public boolean cache(PooledChunk chunk, long handle, int sizeIndex) {
+    if (freed || sizeIndex >= magazines.length || !acquire()) {
       return false;
     }
-    if (capacity >= runSize) {
-      int log2Cap = Integer.SIZE - Integer.numberOfLeadingZeros(capacity) - 1;
-      int index = log2Cap - log2RunSize;
-      return largeCaches[index].offer(byteBuf);
+    try {
+      cacheInMagazine(chunk, handle, sizeIndex);
+      return true;
+    } finally {
+      release();
+    }
+  }
+
+  private void cacheInMagazine(PooledChunk chunk, long handle, int sizeIndex) {
+    if (trimRequested) {
+      // the owner may have stopped allocating but still frees
+      trimRequested = false;
+      trim();
+    }
+    Magazine magazine = magazines[sizeIndex];
+    if (magazine.isFull()) {
+      flush(magazine, magazine.capacity >> 1);
+    }
+    magazine.chunks[magazine.size] = chunk;
+    magazine.handles[magazine.size] = handle;
+    magazine.size++;
+  }
+
+  /**
+   * Takes the magazines for one operation of the owner. Fails only while the sweeper is flushing
+   * them, in which case the owner goes to the arena instead of waiting.
+   */
+  private boolean acquire() {
+    operations++;
+    return STATE_UPDATER.compareAndSet(this, FREE, OWNED);
+  }
+
+  private void release() {
+    STATE_UPDATER.lazySet(this, FREE);
+  }
+
+  /**
+   * Called by the sweeper, never by the owner: hands every cached entry back to the arena if the
+   * owner has not used the cache for {@code idleMillis}. The last activity is taken as the last
+   * sweep that saw the operation count move, so it is only as precise as the sweep interval.
+   *
+   * @return whether the cache was flushed
+   */
+  boolean reclaimIfIdle(long now, long idleMillis) {
+    int operations = this.operations;
+    if (operations != sweptOperations) {
+      sweptOperations = operations;
+      lastActivity = now;
+      return false;
     }
-    if (capacity >= subPageSize) {
-      int log2Cap = Integer.SIZE - Integer.numberOfLeadingZeros(capacity) - 1;
-      int index = log2Cap - log2SubPageSize;
-      return subPageCaches[index].offer(byteBuf);
+    if (now - lastActivity < TimeUnit.MILLISECONDS.toNanos(idleMillis)
+        || !STATE_UPDATER.compareAndSet(this, FREE, RECLAIMING)) {
+      return false;
     }
-    if (capacity >= quantumSize) {
-      int index = capacity / quantumSize - 1;
-      return quantumCaches[index].offer(byteBuf);
+    boolean flushed = false;
+    try {
+      for (Magazine magazine : magazines) {
+        flushed |= magazine.size > 0;
+        flush(magazine, 0);
+        magazine.lowWater = 0;
+      }
+    } finally {
+      release();
     }
-    if (capacity >= tinySize) {
-      int log2Cap = Integer.SIZE - Integer.numberOfLeadingZeros(capacity) - 1;
-      int index = log2Cap - log2SubPageSize;
-      return tinyCaches[index].offer(byteBuf);
+    return flushed;
+  }
+
+  /**
+   * Has the owning thread trim the cache on its next allocation or free. Only the owner trims, as
+   * it knows which magazines it still draws from; another thread can only flush an idle cache
+   * whole, see {@link #reclaimIfIdle(long, long)}.
+   */
+  void requestTrim() {
+    trimRequested = true;
+  }
+
+  public void trim() {
+    for (Magazine magazine : magazines) {
+      int unused = magazine.lowWater;
+      if (unused > 0) {
+        flush(magazine, magazine.size - unused + (unused >> 2));
+      }
+      magazine.lowWater = magazine.size;
     }
-    throw new IllegalArgumentException("invalid capacity");
   }
 
-  public PooledByteBuf alloc(int capacity) {
-    if (capacity >= runSize) {
-      int log2Cap = Integer.SIZE - Integer.numberOfLeadingZeros(capacity) - 1;
-      int index = log2Cap - log2RunSize;
-      return largeCaches[index].poll();
+  public void free() {
+    if (freed) {
+      return;
     }
-    if (capacity >= subPageSize) {
-      int log2Cap = Integer.SIZE - Integer.numberOfLeadingZeros(capacity) - 1;
-      int index = log2Cap - log2SubPageSize;
-      return subPageCaches[index].poll();
+    freed = true;
+    for (Magazine magazine : magazines) {
+      flush(magazine, 0);
+      magazine.lowWater = 0;
     }
-    if (capacity >= quantumSize) {
-      int index = capacity / quantumSize - 1;
-      return subPageCaches[index].poll();
+  }
+
+  private void flush(Magazine magazine, int remain) {
+    int count = magazine.size - remain;
+    if (count <= 0) {
+      return;
     }
-    if (capacity >= tinySize) {
-      int log2Cap = Integer.SIZE - Integer.numberOfLeadingZeros(capacity) - 1;
-      int index = log2Cap - log2TinySize;
-      return tinyCaches[index].poll();
+    arena.free(magazine.chunks, magazine.handles, count);
+    System.arraycopy(magazine.chunks, count, magazine.chunks, 0, remain);
+    System.arraycopy(magazine.handles, count, magazine.handles, 0, remain);
+    for (int i = remain; i < magazine.size; i++) {
+      magazine.chunks[i] = null;
     }
-    throw new IllegalArgumentException("invalid capacity");
+    magazine.size = remain;
   }
 }
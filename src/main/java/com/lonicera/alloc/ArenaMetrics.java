@@ -0,0 +1,199 @@
+package com.lonicera.alloc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Striped counters of an {@link Arena}. Every update is a single {@link LongAdder} increment so
+ * it can sit on the allocation fast path; gauges are read from the arena on demand.
+ */
+class ArenaMetrics implements ArenaMetricsMXBean {
+
+  private final Arena arena;
+  private final ChunkList[] chunkLists;
+  private final LongAdder[] allocations;
+  private final LongAdder[] frees;
+  private final LongAdder cacheHits;
+  private final LongAdder cacheMisses;
+  private final LongAdder chunksCreated;
+  private final LongAdder chunksDestroyed;
+  private final LongAdder usedBytes;
+
+  ArenaMetrics(Arena arena, ChunkList... chunkLists) {
+    this.arena = arena;
+    this.chunkLists = chunkLists;
+    this.allocations = newAdders(SizeClass.values().length);
+    this.frees = newAdders(SizeClass.values().length);
+    this.cacheHits = new LongAdder();
+    this.cacheMisses = new LongAdder();
+    this.chunksCreated = new LongAdder();
+    this.chunksDestroyed = new LongAdder();
+    this.usedBytes = new LongAdder();
+  }
+
+  private static LongAdder[] newAdders(int count) {
+    LongAdder[] adders = new LongAdder[count];
+    for (int i = 0; i < count; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+
+  void allocated(SizeClass sizeClass, int bytes) {
+    allocations[sizeClass.ordinal()].increment();
+    usedBytes.add(bytes);
+  }
+
+  void freed(SizeClass sizeClass, int bytes) {
+    frees[sizeClass.ordinal()].increment();
+    usedBytes.add(-bytes);
+  }
+
+  void cacheHit() {
+    cacheHits.increment();
+  }
+
+  void cacheMiss() {
+    cacheMisses.increment();
+  }
+
+  void chunkCreated() {
+    chunksCreated.increment();
+  }
+
+  void chunkDestroyed() {
+    chunksDestroyed.increment();
+  }
+
+  long allocations(SizeClass sizeClass) {
+    return allocations[sizeClass.ordinal()].sum();
+  }
+
+  long frees(SizeClass sizeClass) {
+    return frees[sizeClass.ordinal()].sum();
+  }
+
+  @Override
+  public long getTinyAllocations() {
+    return allocations(SizeClass.TINY);
+  }
+
+  @Override
+  public long getQuantumAllocations() {
+    return allocations(SizeClass.QUANTUM);
+  }
+
+  @Override
+  public long getSubPageAllocations() {
+    return allocations(SizeClass.SUB_PAGE);
+  }
+
+  @Override
+  public long getLargeAllocations() {
+    return allocations(SizeClass.LARGE);
+  }
+
+  @Override
+  public long getHugeAllocations() {
+    return allocations(SizeClass.HUGE);
+  }
+
+  @Override
+  public long getTinyFrees() {
+    return frees(SizeClass.TINY);
+  }
+
+  @Override
+  public long getQuantumFrees() {
+    return frees(SizeClass.QUANTUM);
+  }
+
+  @Override
+  public long getSubPageFrees() {
+    return frees(SizeClass.SUB_PAGE);
+  }
+
+  @Override
+  public long getLargeFrees() {
+    return frees(SizeClass.LARGE);
+  }
+
+  @Override
+  public long getHugeFrees() {
+    return frees(SizeClass.HUGE);
+  }
+
+  @Override
+  public long getCacheHits() {
+    return cacheHits.sum();
+  }
+
+  @Override
+  public long getCacheMisses() {
+    return cacheMisses.sum();
+  }
+
+  @Override
+  public long getChunksCreated() {
+    return chunksCreated.sum();
+  }
+
+  @Override
+  public long getChunksDestroyed() {
+    return chunksDestroyed.sum();
+  }
+
+  @Override
+  public long getUsedBytes() {
+    return usedBytes.sum();
+  }
+
+  @Override
+  public long getReservedBytes() {
+    return arena.reservedBytes();
+  }
+
+  @Override
+  public int getBoundThreads() {
+    return arena.boundThreads();
+  }
+
+  @Override
+  public long getLockAcquired() {
+    return arena.lockAcquired();
+  }
+
+  @Override
+  public long getLockContended() {
+    return arena.lockContended();
+  }
+
+  @Override
+  public int getQInitChunks() {
+    return chunkLists[0].size();
+  }
+
+  @Override
+  public int getQ0Chunks() {
+    return chunkLists[1].size();
+  }
+
+  @Override
+  public int getQ25Chunks() {
+    return chunkLists[2].size();
+  }
+
+  @Override
+  public int getQ50Chunks() {
+    return chunkLists[3].size();
+  }
+
+  @Override
+  public int getQ75Chunks() {
+    return chunkLists[4].size();
+  }
+
+  @Override
+  public int getQ100Chunks() {
+    return chunkLists[5].size();
+  }
+}
@@ -0,0 +1,58 @@
+package com.lonicera.alloc;
+
+/**
+ * Counters and gauges of a single arena. Counters only ever grow; gauges are sampled without
+ * taking the arena lock and may be slightly stale.
+ */
+public interface ArenaMetricsMXBean {
+
+  long getTinyAllocations();
+
+  long getQuantumAllocations();
+
+  long getSubPageAllocations();
+
+  long getLargeAllocations();
+
+  long getHugeAllocations();
+
+  long getTinyFrees();
+
+  long getQuantumFrees();
+
+  long getSubPageFrees();
+
+  long getLargeFrees();
+
+  long getHugeFrees();
+
+  long getCacheHits();
+
+  long getCacheMisses();
+
+  long getChunksCreated();
+
+  long getChunksDestroyed();
+
+  long getUsedBytes();
+
+  long getReservedBytes();
+
+  int getBoundThreads();
+
+  long getLockAcquired();
+
+  long getLockContended();
+
+  int getQInitChunks();
+
+  int getQ0Chunks();
+
+  int getQ25Chunks();
+
+  int getQ50Chunks();
+
+  int getQ75Chunks();
+
+  int getQ100Chunks();
+}
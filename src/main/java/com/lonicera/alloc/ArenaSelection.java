@@ -0,0 +1,19 @@
+package com.lonicera.alloc;
+
+/**
+ * How {@link MemoryAllocator} picks the arena a thread allocates from.
+ */
+public enum ArenaSelection {
+  /**
+   * Each thread is bound to the least loaded arena on its first allocation and keeps a cache of
+   * recently freed buffers in front of it. Fastest for a moderate number of long-lived threads.
+   */
+  THREAD_LOCAL,
+  /**
+   * Each allocation goes to the arena its thread's probe hash points at, and a thread that meets a
+   * contended arena lock rehashes to another one, the way {@code LongAdder} picks its cells.
+   * Nothing is kept per thread, so this suits virtual threads and very large thread counts, at the
+   * price of going to the arena for every allocation and free.
+   */
+  STRIPED
+}
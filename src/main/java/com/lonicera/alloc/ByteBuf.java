@@ -1,16 +1,232 @@
 package com.lonicera.alloc;
 
+import java.nio.ByteBuffer;
+
+/**
+ * A region of pooled or unpooled memory with a reader and a writer index.
+ *
+ * Absolute accessors ({@code getXxx}/{@code setXxx}) take an index relative to the start of the
+ * buffer and leave both indexes untouched. Relative accessors ({@code readXxx}/{@code writeXxx})
+ * advance the reader or writer index. Multi-byte values are big-endian unless the method name
+ * ends with {@code LE}.
+ */
 public interface ByteBuf {
 
+  int capacity();
+
+  /**
+   * Resizes the buffer to at least {@code newCapacity}, rounded up to a size class. A large pooled
+   * buffer grows over the free pages that follow it and shrinks by giving back its tail, without
+   * moving; otherwise the content, up to the smaller of the two capacities, is copied to new
+   * memory. The indexes are kept, clipped to the new capacity.
+   *
+   * @throws IllegalArgumentException if {@code newCapacity} is not in {@code [1, maxCapacity()]}
+   * @throws UnsupportedOperationException if the buffer cannot be resized
+   */
+  ByteBuf capacity(int newCapacity);
+
+  /**
+   * The capacity the buffer may grow to. A pooled buffer that grows past half a chunk moves to a
+   * huge extent, so this is the largest capacity the allocator can hand out.
+   */
+  int maxCapacity();
+
+  /**
+   * Grows the buffer, if needed, so that at least {@code minWritableBytes} can be written.
+   *
+   * @throws IndexOutOfBoundsException if that would exceed {@link #maxCapacity()}
+   */
+  ByteBuf ensureWritable(int minWritableBytes);
+
+  /**
+   * Records the current stack with {@code hint} as the buffer's latest access, for the report
+   * should the buffer leak. Does nothing unless the buffer was picked for leak detection.
+   *
+   * @see MemoryAllocator#leakDetection(LeakDetectionLevel, int)
+   */
+  ByteBuf touch(Object hint);
+
+  boolean isDirect();
+
+  /**
+   * Whether the buffer is backed by a {@code byte[]}, i.e. {@link #array()} may be called.
+   */
+  boolean hasArray();
+
+  /**
+   * The backing array, shared with every other buffer of the same chunk; the buffer starts at
+   * {@link #arrayOffset()}.
+   *
+   * @throws UnsupportedOperationException if the buffer is not backed by an array
+   */
+  byte[] array();
+
+  int arrayOffset();
+
+  int readerIndex();
+
+  void readerIndex(int readerIndex);
+
+  int writerIndex();
+
+  void writerIndex(int writerIndex);
+
+  int readableBytes();
+
+  int writableBytes();
+
+  byte getByte(int index);
+
+  short getShort(int index);
+
+  short getShortLE(int index);
+
+  int getInt(int index);
+
+  int getIntLE(int index);
+
+  long getLong(int index);
+
+  long getLongLE(int index);
+
+  float getFloat(int index);
+
+  float getFloatLE(int index);
+
+  double getDouble(int index);
+
+  double getDoubleLE(int index);
+
+  void getBytes(int index, byte[] dst, int dstIndex, int length);
+
+  void setByte(int index, byte value);
+
+  void setShort(int index, short value);
+
+  void setShortLE(int index, short value);
+
+  void setInt(int index, int value);
+
+  void setIntLE(int index, int value);
+
+  void setLong(int index, long value);
+
+  void setLongLE(int index, long value);
+
+  void setFloat(int index, float value);
+
+  void setFloatLE(int index, float value);
+
+  void setDouble(int index, double value);
+
+  void setDoubleLE(int index, double value);
+
+  void setBytes(int index, byte[] src, int srcIndex, int length);
+
   byte readByte();
 
-  void writeByte(byte b);
+  short readShort();
+
+  short readShortLE();
+
+  int readInt();
+
+  int readIntLE();
+
+  long readLong();
+
+  long readLongLE();
+
+  float readFloat();
+
+  float readFloatLE();
+
+  double readDouble();
+
+  double readDoubleLE();
 
   int readBytes(byte[] bytes);
 
+  void writeByte(byte b);
+
+  void writeShort(short value);
+
+  void writeShortLE(short value);
+
+  void writeInt(int value);
+
+  void writeIntLE(int value);
+
+  void writeLong(long value);
+
+  void writeLongLE(long value);
+
+  void writeFloat(float value);
+
+  void writeFloatLE(float value);
+
+  void writeDouble(double value);
+
+  void writeDoubleLE(double value);
+
   int writeBytes(byte[] bytes);
 
-  void release();
+  /**
+   * A view of {@code length} bytes from {@code index} that shares this buffer's memory, with its
+   * own position and limit. It is only valid until the buffer is released.
+   */
+  ByteBuffer nioBuffer(int index, int length);
+
+  /**
+   * Views of the readable bytes, one per contiguous region, e.g. for {@link
+   * java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}. Reading from them does not move
+   * the reader index.
+   */
+  ByteBuffer[] nioBuffers();
+
+  /**
+   * A view of {@code length} bytes from {@code index} with its own indexes, reader index 0 and
+   * writer index {@code length}. The view shares this buffer's memory and reference count: no
+   * bytes are copied, and retaining or releasing either one counts for both. A view stays on the
+   * memory it was made from, so it must not be used after the buffer is resized.
+   *
+   * @throws UnsupportedOperationException for a {@link CompositeByteBuf}
+   */
+  ByteBuf slice(int index, int length);
+
+  /**
+   * {@link #slice(int, int)} of the readable bytes.
+   */
+  ByteBuf slice();
+
+  /**
+   * A view of the whole buffer that starts with this buffer's indexes; otherwise as
+   * {@link #slice(int, int)}.
+   */
+  ByteBuf duplicate();
+
+  int refCnt();
+
+  /**
+   * Adds one holder. Each {@code retain} needs its own {@link #release()}.
+   *
+   * @throws IllegalStateException if the buffer is already released
+   */
+  ByteBuf retain();
+
+  ByteBuf retain(int increment);
+
+  /**
+   * Drops one holder, and once none is left returns the memory to the allocator. The buffer must
+   * not be used afterwards; a pooled buffer object may be handed out again by a later
+   * {@code alloc}.
+   *
+   * @return whether this call returned the memory
+   * @throws IllegalStateException if the buffer is already released
+   */
+  boolean release();
+
+  boolean release(int decrement);
 
   void resetReaderIndex();
 
@@ -0,0 +1,114 @@
+package com.lonicera.alloc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Thread-local free lists of {@link PooledByteBuf} wrappers, so a steady alloc/release loop
+ * allocates no Java objects at all.
+ *
+ * A wrapper goes back to the stack of the thread that created it. The owner pushes and pops a
+ * plain array; any other thread pushes onto a lock-free list linked through the wrappers
+ * themselves, which the owner takes over in one swap when its array runs dry. Both sides are
+ * bounded, anything beyond is left to the GC.
+ */
+final class ByteBufRecycler {
+
+  static final int MAX_CAPACITY_PER_THREAD = 1024;
+
+  private static final ThreadLocal<Stack> STACKS = new ThreadLocal<Stack>() {
+    @Override
+    protected Stack initialValue() {
+      return new Stack(Thread.currentThread(), MAX_CAPACITY_PER_THREAD);
+    }
+  };
+
+  static final class Stack {
+
+    private final Thread thread;
+    private final PooledByteBuf[] elements;
+    private int size;
+    private final AtomicReference<PooledByteBuf> remoteHead;
+    private final AtomicInteger remoteSize;
+
+    Stack(Thread thread, int capacity) {
+      this.thread = thread;
+      this.elements = new PooledByteBuf[capacity];
+      this.remoteHead = new AtomicReference<>();
+      this.remoteSize = new AtomicInteger();
+    }
+
+    private PooledByteBuf pop() {
+      if (size == 0 && !scavenge()) {
+        return null;
+      }
+      size--;
+      PooledByteBuf byteBuf = elements[size];
+      elements[size] = null;
+      return byteBuf;
+    }
+
+    private void push(PooledByteBuf byteBuf) {
+      if (Thread.currentThread() == thread) {
+        pushLocal(byteBuf);
+      } else {
+        pushRemote(byteBuf);
+      }
+    }
+
+    private void pushLocal(PooledByteBuf byteBuf) {
+      if (size < elements.length) {
+        elements[size++] = byteBuf;
+      }
+    }
+
+    private void pushRemote(PooledByteBuf byteBuf) {
+      if (remoteSize.incrementAndGet() > elements.length) {
+        remoteSize.decrementAndGet();
+        return;
+      }
+      PooledByteBuf head;
+      do {
+        head = remoteHead.get();
+        byteBuf.recycleNext = head;
+      } while (!remoteHead.compareAndSet(head, byteBuf));
+    }
+
+    /**
+     * Moves everything other threads returned into the local array. The remote list is only ever
+     * swapped out whole, so pushes can't suffer from ABA.
+     */
+    private boolean scavenge() {
+      PooledByteBuf byteBuf = remoteHead.getAndSet(null);
+      if (byteBuf == null) {
+        return false;
+      }
+      int count = 0;
+      while (byteBuf != null) {
+        PooledByteBuf next = byteBuf.recycleNext;
+        byteBuf.recycleNext = null;
+        pushLocal(byteBuf);
+        byteBuf = next;
+        count++;
+      }
+      remoteSize.addAndGet(-count);
+      return size > 0;
+    }
+  }
+
+  private ByteBufRecycler() {
+  }
+
+  static PooledByteBuf get() {
+    Stack stack = STACKS.get();
+    PooledByteBuf byteBuf = stack.pop();
+    if (byteBuf == null) {
+      byteBuf = new PooledByteBuf(stack);
+    }
+    return byteBuf;
+  }
+
+  static void recycle(PooledByteBuf byteBuf) {
+    byteBuf.stack().push(byteBuf);
+  }
+}
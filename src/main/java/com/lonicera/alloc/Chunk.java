@@ -7,5 +7,5 @@ interface Chunk {
   int usage();
   void release(long handle);
   void chunkList(ChunkList chunkList);
-  boolean alloc(PooledByteBuf byteBuf, int capacity);
+  boolean alloc(AllocTarget target, int capacity);
 }
@@ -1,39 +1,26 @@
 package com.lonicera.alloc;
 
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Chunks whose usage falls in {@code [minUsage, maxUsage]}. The list is intrusive: the links live
+ * on the chunks themselves, so moving a chunk between lists allocates nothing and needs no lookup.
+ */
 public class ChunkList {
 
-  private static class ChunkNode {
-
-    private ChunkNode pre;
-    private Chunk chunk;
-    private ChunkNode next;
-
-    public ChunkNode(ChunkNode pre, Chunk chunk, ChunkNode next) {
-      this.pre = pre;
-      this.chunk = chunk;
-      this.next = next;
-    }
-  }
-
   private String name;
-  private final ChunkNode HEAD = new ChunkNode(null, null, null);
-  private final ChunkNode chunkQueueHead;
-  private ChunkNode chunkQueueTail;
-  private Map<Chunk, ChunkNode> chunkNodeMap;
+  private PooledChunk head;
+  private PooledChunk tail;
   private ChunkList pre;
   private ChunkList next;
   private int minUsage;
   private int maxUsage;
+  private int size;
 
   public ChunkList(String name, ChunkList pre, ChunkList next, int minUsage, int maxUsage) {
     this.name = name;
-    chunkQueueHead = HEAD;
-    chunkQueueTail = null;
-    chunkNodeMap = new HashMap<>();
     this.pre = pre;
     this.next = next;
     this.minUsage = minUsage;
@@ -60,24 +47,29 @@ public class ChunkList {
     return pre;
   }
 
-  public void add(Chunk chunk) {
+  public String name() {
+    return name;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void add(PooledChunk chunk) {
     chunk.chunkList(this);
-    ChunkNode last = chunkQueueTail;
-    if (last == null) {
-      ChunkNode chunkNode = new ChunkNode(chunkQueueHead, chunk, null);
-      chunkQueueHead.next = chunkNode;
-      chunkQueueTail = chunkNode;
-      chunkNodeMap.put(chunk, chunkNode);
+    size++;
+    chunk.prev = tail;
+    chunk.next = null;
+    if (tail == null) {
+      head = chunk;
     } else {
-      ChunkNode chunkNode = new ChunkNode(last, chunk, null);
-      last.next = chunkNode;
-      chunkQueueTail = chunkNode;
-      chunkNodeMap.put(chunk, chunkNode);
+      tail.next = chunk;
     }
+    tail = chunk;
   }
 
 
-  public void moveUp(Chunk chunk) {
+  public void moveUp(PooledChunk chunk) {
     if(chunk.usage() <= maxUsage()){
       return;
     }
@@ -93,7 +85,7 @@ public class ChunkList {
     }
   }
 
-  public void moveDown(Chunk chunk) {
+  public void moveDown(PooledChunk chunk) {
     if(chunk.usage() >= minUsage()){
       return;
     }
@@ -109,41 +101,41 @@ public class ChunkList {
     }
   }
 
-  public void remove(Chunk chunk) {
-    ChunkNode chunkNode = chunkNodeMap.remove(chunk);
-    if (chunkNode == null) {
+  public void remove(PooledChunk chunk) {
+    if (chunk.chunkList() != this) {
       throw new IllegalArgumentException("Not In List Chunck");
     }
-    ChunkNode pre = chunkNode.pre;
-    ChunkNode next = chunkNode.next;
-    if (pre == chunkQueueHead && next == null) {
-      chunkQueueHead.next = next;
-      chunkQueueTail = next;
-      return;
-    }
-    if (pre == chunkQueueHead && next != null) {
-      next.pre = chunkQueueHead;
-      chunkQueueHead.next = next;
-      return;
+    size--;
+    PooledChunk pre = chunk.prev;
+    PooledChunk next = chunk.next;
+    if (pre == null) {
+      head = next;
+    } else {
+      pre.next = next;
     }
-    if (pre != chunkQueueHead && next == null) {
-      pre.next = null;
-      chunkQueueTail = pre;
-      return;
+    if (next == null) {
+      tail = pre;
+    } else {
+      next.prev = pre;
     }
-    if (pre != chunkQueueHead && next != null) {
-      pre.next = next;
-      next.pre = pre;
+    chunk.prev = null;
+    chunk.next = null;
+    chunk.chunkList(null);
+  }
+
+  public List<PooledChunk> chunks() {
+    List<PooledChunk> chunks = new ArrayList<>(size);
+    for (PooledChunk chunk = head; chunk != null; chunk = chunk.next) {
+      chunks.add(chunk);
     }
+    return chunks;
   }
 
-  public boolean alloc(PooledByteBuf byteBuf, int capacity) {
-    ChunkNode next = HEAD.next;
-    while (next != null) {
-      if (next.chunk.alloc(byteBuf, capacity)) {
+  public boolean alloc(AllocTarget target, int capacity) {
+    for (PooledChunk chunk = head; chunk != null; chunk = chunk.next) {
+      if (chunk.alloc(target, capacity)) {
         return true;
       }
-      next = next.next;
     }
     return false;
   }
@@ -151,11 +143,9 @@ public class ChunkList {
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    ChunkNode next = chunkQueueHead.next;
-    while (next != null) {
-      sb.append(next.chunk);
-      next = next.next;
-      if(next != null){
+    for (PooledChunk chunk = head; chunk != null; chunk = chunk.next) {
+      sb.append(chunk);
+      if (chunk.next != null) {
         sb.append(" -> ");
       }
     }
@@ -0,0 +1,38 @@
+package com.lonicera.alloc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where an arena gets the memory of its chunks and huge regions from. Memory is freed by
+ * {@link DirectBufferCleaner} for direct and mapped buffers and by the GC for heap buffers.
+ */
+interface ChunkSource {
+
+  ChunkSource DIRECT = new ChunkSource() {
+    @Override
+    public MemoryType memoryType() {
+      return MemoryType.DIRECT;
+    }
+
+    @Override
+    public ByteBuffer allocate(int size) {
+      return ByteBuffer.allocateDirect(size);
+    }
+  };
+
+  ChunkSource HEAP = new ChunkSource() {
+    @Override
+    public MemoryType memoryType() {
+      return MemoryType.HEAP;
+    }
+
+    @Override
+    public ByteBuffer allocate(int size) {
+      return ByteBuffer.allocate(size);
+    }
+  };
+
+  MemoryType memoryType();
+
+  ByteBuffer allocate(int size);
+}
@@ -0,0 +1,372 @@
+package com.lonicera.alloc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Several buffers presented as one, without copying them together. Each component contributes the
+ * bytes that were readable when it was added and advances the writer index by as much, so a header,
+ * body fragments and a trailer written separately can be read or handed to a gathering channel via
+ * {@link #nioBuffers()} in one piece.
+ *
+ * The composite owns its components: its last {@link #release()} releases each of them once.
+ * Accessors that straddle two components are assembled from smaller ones.
+ */
+public class CompositeByteBuf extends AbstractByteBuf {
+
+  private ByteBuf[] components;
+  // composite index of the first byte of each component, and one past its last byte
+  private int[] starts;
+  private int[] ends;
+  // each component's reader index when it was added
+  private int[] adjustments;
+  private int count;
+  private int lastAccessed;
+
+  public CompositeByteBuf(ByteBuf... components) {
+    this.components = new ByteBuf[Math.max(components.length, 4)];
+    this.starts = new int[this.components.length];
+    this.ends = new int[this.components.length];
+    this.adjustments = new int[this.components.length];
+    for (ByteBuf component : components) {
+      addComponent(component);
+    }
+  }
+
+  /**
+   * Appends the readable bytes of {@code component}. The component's indexes must not be moved
+   * while it is part of the composite.
+   */
+  public CompositeByteBuf addComponent(ByteBuf component) {
+    if (component == null) {
+      throw new IllegalArgumentException("component require not null");
+    }
+    if (count == components.length) {
+      int newLength = components.length << 1;
+      components = Arrays.copyOf(components, newLength);
+      starts = Arrays.copyOf(starts, newLength);
+      ends = Arrays.copyOf(ends, newLength);
+      adjustments = Arrays.copyOf(adjustments, newLength);
+    }
+    component.touch("added to a composite");
+    int start = capacity();
+    int length = component.readableBytes();
+    components[count] = component;
+    starts[count] = start;
+    ends[count] = start + length;
+    adjustments[count] = component.readerIndex();
+    count++;
+    adjustCapacity(start + length);
+    writerIndex(writerIndex() + length);
+    return this;
+  }
+
+  public int numComponents() {
+    return count;
+  }
+
+  public ByteBuf component(int componentIndex) {
+    if (componentIndex < 0 || componentIndex >= count) {
+      throw new IndexOutOfBoundsException(String.format(
+          "componentIndex: %d (expected: range(0, %d))", componentIndex, count));
+    }
+    return components[componentIndex];
+  }
+
+  private int componentIndex(int index) {
+    int last = lastAccessed;
+    if (last < count && index >= starts[last] && index < ends[last]) {
+      return last;
+    }
+    int low = 0;
+    int high = count - 1;
+    while (low < high) {
+      int mid = (low + high + 1) >>> 1;
+      if (starts[mid] <= index) {
+        low = mid;
+      } else {
+        high = mid - 1;
+      }
+    }
+    // skip empty components sharing the same start
+    while (ends[low] <= index) {
+      low++;
+    }
+    lastAccessed = low;
+    return low;
+  }
+
+  private int componentOffset(int componentIndex, int index) {
+    return adjustments[componentIndex] + index - starts[componentIndex];
+  }
+
+  @Override
+  public boolean isDirect() {
+    for (int i = 0; i < count; i++) {
+      if (!components[i].isDirect()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean hasArray() {
+    return count == 1 && components[0].hasArray();
+  }
+
+  @Override
+  public byte[] array() {
+    if (count != 1) {
+      throw new UnsupportedOperationException("composite of " + count + " components");
+    }
+    return components[0].array();
+  }
+
+  @Override
+  public int arrayOffset() {
+    if (count != 1) {
+      throw new UnsupportedOperationException("composite of " + count + " components");
+    }
+    return components[0].arrayOffset() + adjustments[0];
+  }
+
+  @Override
+  public byte getByte(int index) {
+    checkIndex(index, 1);
+    int c = componentIndex(index);
+    return components[c].getByte(componentOffset(c, index));
+  }
+
+  @Override
+  public short getShort(int index) {
+    checkIndex(index, 2);
+    int c = componentIndex(index);
+    if (index + 2 <= ends[c]) {
+      return components[c].getShort(componentOffset(c, index));
+    }
+    return (short) ((getByte(index) & 0xff) << 8 | getByte(index + 1) & 0xff);
+  }
+
+  @Override
+  public short getShortLE(int index) {
+    return Short.reverseBytes(getShort(index));
+  }
+
+  @Override
+  public int getInt(int index) {
+    checkIndex(index, 4);
+    int c = componentIndex(index);
+    if (index + 4 <= ends[c]) {
+      return components[c].getInt(componentOffset(c, index));
+    }
+    return (getShort(index) & 0xffff) << 16 | getShort(index + 2) & 0xffff;
+  }
+
+  @Override
+  public int getIntLE(int index) {
+    return Integer.reverseBytes(getInt(index));
+  }
+
+  @Override
+  public long getLong(int index) {
+    checkIndex(index, 8);
+    int c = componentIndex(index);
+    if (index + 8 <= ends[c]) {
+      return components[c].getLong(componentOffset(c, index));
+    }
+    return (getInt(index) & 0xffffffffL) << 32 | getInt(index + 4) & 0xffffffffL;
+  }
+
+  @Override
+  public long getLongLE(int index) {
+    return Long.reverseBytes(getLong(index));
+  }
+
+  @Override
+  public float getFloat(int index) {
+    return Float.intBitsToFloat(getInt(index));
+  }
+
+  @Override
+  public float getFloatLE(int index) {
+    return Float.intBitsToFloat(getIntLE(index));
+  }
+
+  @Override
+  public double getDouble(int index) {
+    return Double.longBitsToDouble(getLong(index));
+  }
+
+  @Override
+  public double getDoubleLE(int index) {
+    return Double.longBitsToDouble(getLongLE(index));
+  }
+
+  @Override
+  public void getBytes(int index, byte[] dst, int dstIndex, int length) {
+    checkIndex(index, length);
+    if (dstIndex < 0 || dstIndex > dst.length - length) {
+      throw new IndexOutOfBoundsException(String.format(
+          "arrayIndex: %d, length: %d (expected: range(0, %d))", dstIndex, length, dst.length));
+    }
+    while (length > 0) {
+      int c = componentIndex(index);
+      int copy = Math.min(length, ends[c] - index);
+      components[c].getBytes(componentOffset(c, index), dst, dstIndex, copy);
+      index += copy;
+      dstIndex += copy;
+      length -= copy;
+    }
+  }
+
+  @Override
+  public void setByte(int index, byte value) {
+    checkIndex(index, 1);
+    int c = componentIndex(index);
+    components[c].setByte(componentOffset(c, index), value);
+  }
+
+  @Override
+  public void setShort(int index, short value) {
+    checkIndex(index, 2);
+    int c = componentIndex(index);
+    if (index + 2 <= ends[c]) {
+      components[c].setShort(componentOffset(c, index), value);
+      return;
+    }
+    setByte(index, (byte) (value >>> 8));
+    setByte(index + 1, (byte) value);
+  }
+
+  @Override
+  public void setShortLE(int index, short value) {
+    setShort(index, Short.reverseBytes(value));
+  }
+
+  @Override
+  public void setInt(int index, int value) {
+    checkIndex(index, 4);
+    int c = componentIndex(index);
+    if (index + 4 <= ends[c]) {
+      components[c].setInt(componentOffset(c, index), value);
+      return;
+    }
+    setShort(index, (short) (value >>> 16));
+    setShort(index + 2, (short) value);
+  }
+
+  @Override
+  public void setIntLE(int index, int value) {
+    setInt(index, Integer.reverseBytes(value));
+  }
+
+  @Override
+  public void setLong(int index, long value) {
+    checkIndex(index, 8);
+    int c = componentIndex(index);
+    if (index + 8 <= ends[c]) {
+      components[c].setLong(componentOffset(c, index), value);
+      return;
+    }
+    setInt(index, (int) (value >>> 32));
+    setInt(index + 4, (int) value);
+  }
+
+  @Override
+  public void setLongLE(int index, long value) {
+    setLong(index, Long.reverseBytes(value));
+  }
+
+  @Override
+  public void setFloat(int index, float value) {
+    setInt(index, Float.floatToRawIntBits(value));
+  }
+
+  @Override
+  public void setFloatLE(int index, float value) {
+    setIntLE(index, Float.floatToRawIntBits(value));
+  }
+
+  @Override
+  public void setDouble(int index, double value) {
+    setLong(index, Double.doubleToRawLongBits(value));
+  }
+
+  @Override
+  public void setDoubleLE(int index, double value) {
+    setLongLE(index, Double.doubleToRawLongBits(value));
+  }
+
+  @Override
+  public void setBytes(int index, byte[] src, int srcIndex, int length) {
+    checkIndex(index, length);
+    if (srcIndex < 0 || srcIndex > src.length - length) {
+      throw new IndexOutOfBoundsException(String.format(
+          "arrayIndex: %d, length: %d (expected: range(0, %d))", srcIndex, length, src.length));
+    }
+    while (length > 0) {
+      int c = componentIndex(index);
+      int copy = Math.min(length, ends[c] - index);
+      components[c].setBytes(componentOffset(c, index), src, srcIndex, copy);
+      index += copy;
+      srcIndex += copy;
+      length -= copy;
+    }
+  }
+
+  /**
+   * A view if the range lies within one component, otherwise a heap copy of the range.
+   */
+  @Override
+  public ByteBuffer nioBuffer(int index, int length) {
+    checkIndex(index, length);
+    if (length == 0) {
+      return ByteBuffer.allocate(0);
+    }
+    int c = componentIndex(index);
+    if (index + length <= ends[c]) {
+      return components[c].nioBuffer(componentOffset(c, index), length);
+    }
+    byte[] bytes = new byte[length];
+    getBytes(index, bytes, 0, length);
+    return ByteBuffer.wrap(bytes);
+  }
+
+  @Override
+  public ByteBuffer[] nioBuffers() {
+    int index = readerIndex();
+    int length = readableBytes();
+    if (length == 0) {
+      return new ByteBuffer[0];
+    }
+    int first = componentIndex(index);
+    int last = componentIndex(index + length - 1);
+    ByteBuffer[] buffers = new ByteBuffer[last - first + 1];
+    for (int c = first; c <= last; c++) {
+      int copy = Math.min(length, ends[c] - index);
+      buffers[c - first] = components[c].nioBuffer(componentOffset(c, index), copy);
+      index += copy;
+      length -= copy;
+    }
+    return buffers;
+  }
+
+  @Override
+  public ByteBuf slice(int index, int length) {
+    throw new UnsupportedOperationException("slice of a composite");
+  }
+
+  @Override
+  public ByteBuf duplicate() {
+    throw new UnsupportedOperationException("duplicate of a composite");
+  }
+
+  @Override
+  void deallocate() {
+    for (int i = 0; i < count; i++) {
+      components[i].release();
+      components[i] = null;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package com.lonicera.alloc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A slice or duplicate: its own indexes over the memory of a root buffer, whose reference count
+ * it shares. Accessors read the memory directly rather than going through the root, once they
+ * have checked that the root still holds it.
+ */
+final class DerivedByteBuf extends AbstractByteBuf {
+
+  private final AbstractByteBuf root;
+  private final int rootGeneration;
+
+  DerivedByteBuf(AbstractByteBuf root, ByteBuffer memory, int offset, int capacity) {
+    this.root = root;
+    this.rootGeneration = root.generation();
+    initMemory(memory, offset, capacity);
+  }
+
+  /**
+   * The view keeps the root's memory after the root is released; that memory may belong to
+   * another buffer by now, or to a chunk that is already freed. A pooled root may even be alive
+   * again as a recycled wrapper around other memory, hence the generation.
+   */
+  @Override
+  void ensureAccessible() {
+    if (root.refCnt() == 0 || root.generation() != rootGeneration) {
+      throw new IllegalStateException("buffer already released");
+    }
+  }
+
+  @Override
+  AbstractByteBuf root() {
+    return root;
+  }
+
+  @Override
+  public int refCnt() {
+    return root.refCnt();
+  }
+
+  @Override
+  public ByteBuf retain(int increment) {
+    root.retain(increment);
+    return this;
+  }
+
+  @Override
+  public boolean release(int decrement) {
+    return root.release(decrement);
+  }
+
+  @Override
+  void deallocate() {
+    // the root deallocates, the view holds nothing of its own
+  }
+
+  @Override
+  public ByteBuf touch(Object hint) {
+    root.touch(hint);
+    return this;
+  }
+}
@@ -0,0 +1,73 @@
+package com.lonicera.alloc;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the native address of a direct {@link ByteBuffer} through {@code sun.misc.Unsafe}, which
+ * is what alignment has to be measured against: {@code allocateDirect} only guarantees what
+ * {@code malloc} does.
+ */
+final class DirectBufferAddress {
+
+  private static final Object UNSAFE;
+  private static final Method GET_LONG;
+  private static final long ADDRESS_OFFSET;
+
+  static {
+    Object unsafe = null;
+    Method getLong = null;
+    long addressOffset = -1;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+      Method objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+      addressOffset = (Long) objectFieldOffset.invoke(unsafe,
+          Buffer.class.getDeclaredField("address"));
+      getLong = unsafeClass.getMethod("getLong", Object.class, long.class);
+    } catch (Throwable unsupported) {
+      unsafe = null;
+      getLong = null;
+      addressOffset = -1;
+    }
+    UNSAFE = unsafe;
+    GET_LONG = getLong;
+    ADDRESS_OFFSET = addressOffset;
+  }
+
+  private DirectBufferAddress() {
+  }
+
+  /**
+   * @return the address of the first byte of {@code buffer}, or -1 for a heap buffer or if the
+   * address cannot be read
+   */
+  static long address(ByteBuffer buffer) {
+    if (!buffer.isDirect() || GET_LONG == null) {
+      return -1;
+    }
+    try {
+      return (Long) GET_LONG.invoke(UNSAFE, buffer, ADDRESS_OFFSET);
+    } catch (Throwable e) {
+      return -1;
+    }
+  }
+
+  /**
+   * A {@code size} byte slice of {@code buffer} that starts at the first {@code alignment}
+   * boundary, for which {@code buffer} must have {@code alignment} bytes to spare. A heap buffer,
+   * or one whose address cannot be read, is sliced at 0.
+   */
+  static ByteBuffer alignedSlice(ByteBuffer buffer, int alignment, int size) {
+    long address = address(buffer);
+    int start = address < 0 ? 0 : (int) (-address & (alignment - 1));
+    ByteBuffer duplicate = buffer.duplicate();
+    ((Buffer) duplicate).position(start);
+    ((Buffer) duplicate).limit(start + size);
+    return duplicate.slice();
+  }
+}
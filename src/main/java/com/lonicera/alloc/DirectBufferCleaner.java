@@ -0,0 +1,72 @@
+package com.lonicera.alloc;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees the native memory behind a direct {@link ByteBuffer} right away instead of waiting for the
+ * buffer to be garbage collected. Uses {@code Unsafe.invokeCleaner} on Java 9+ and the buffer's
+ * {@code cleaner()} on Java 8; if neither is reachable, freeing is left to the GC.
+ */
+final class DirectBufferCleaner {
+
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+  private static final Method CLEANER;
+  private static final Method CLEAN;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    Method cleaner = null;
+    Method clean = null;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafe = theUnsafe.get(null);
+      invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (Throwable java8) {
+      unsafe = null;
+      invokeCleaner = null;
+      try {
+        ByteBuffer probe = ByteBuffer.allocateDirect(1);
+        cleaner = probe.getClass().getMethod("cleaner");
+        cleaner.setAccessible(true);
+        Object probeCleaner = cleaner.invoke(probe);
+        clean = probeCleaner.getClass().getMethod("clean");
+        clean.setAccessible(true);
+        clean.invoke(probeCleaner);
+      } catch (Throwable unsupported) {
+        cleaner = null;
+        clean = null;
+      }
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+    CLEANER = cleaner;
+    CLEAN = clean;
+  }
+
+  private DirectBufferCleaner() {
+  }
+
+  static void free(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+      } else if (CLEAN != null) {
+        Object cleaner = CLEANER.invoke(buffer);
+        if (cleaner != null) {
+          CLEAN.invoke(cleaner);
+        }
+      }
+    } catch (Throwable ignore) {
+      // the buffer stays reachable only through the caller, so the GC will free it
+    }
+  }
+}
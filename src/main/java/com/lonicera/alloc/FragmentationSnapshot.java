@@ -0,0 +1,266 @@
+package com.lonicera.alloc;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where the free memory of every arena of a {@link MemoryAllocator} sits, taken by {@link
+ * MemoryAllocator#fragmentationSnapshot()}. Each arena is copied under its own lock, one arena at
+ * a time, and everything derived from the copy is computed after the lock is released, so the
+ * arenas agree with themselves but not necessarily with each other.
+ *
+ * External fragmentation is the share of free memory that the largest request a chunk can still
+ * serve does not cover, {@code 1 - largestFreeRun / freeBytes}. Internal fragmentation is the
+ * share of the memory held by small runs that is not handed out: free slots and the tail of a run
+ * that no slot fits into.
+ */
+public final class FragmentationSnapshot {
+
+  private final List<ArenaFragmentation> arenas;
+
+  FragmentationSnapshot(List<ArenaFragmentation> arenas) {
+    this.arenas = Collections.unmodifiableList(arenas);
+  }
+
+  public List<ArenaFragmentation> arenas() {
+    return arenas;
+  }
+
+  public String toJson() {
+    StringBuilder json = new StringBuilder("{\"arenas\":[");
+    for (int i = 0; i < arenas.size(); i++) {
+      if (i > 0) {
+        json.append(',');
+      }
+      arenas.get(i).toJson(json);
+    }
+    return json.append("]}").toString();
+  }
+
+  @Override
+  public String toString() {
+    return toJson();
+  }
+
+  private static String ratio(double ratio) {
+    return String.format(Locale.ROOT, "%.4f", ratio);
+  }
+
+  public static final class ArenaFragmentation {
+
+    private final MemoryType memoryType;
+    private final int index;
+    private final long usedBytes;
+    private final long hugeReservedBytes;
+    private final List<ChunkFragmentation> chunks;
+    private final List<SizeClassOccupancy> sizeClasses;
+
+    ArenaFragmentation(MemoryType memoryType, int index, long usedBytes, long hugeReservedBytes,
+        List<ChunkFragmentation> chunks, List<SizeClassOccupancy> sizeClasses) {
+      this.memoryType = memoryType;
+      this.index = index;
+      this.usedBytes = usedBytes;
+      this.hugeReservedBytes = hugeReservedBytes;
+      this.chunks = Collections.unmodifiableList(chunks);
+      this.sizeClasses = Collections.unmodifiableList(sizeClasses);
+    }
+
+    public MemoryType memoryType() {
+      return memoryType;
+    }
+
+    public int index() {
+      return index;
+    }
+
+    /**
+     * Bytes handed out in buffers, huge ones included, counted in size classes.
+     */
+    public long usedBytes() {
+      return usedBytes;
+    }
+
+    public long hugeReservedBytes() {
+      return hugeReservedBytes;
+    }
+
+    public List<ChunkFragmentation> chunks() {
+      return chunks;
+    }
+
+    /**
+     * The small size classes that have at least one run.
+     */
+    public List<SizeClassOccupancy> sizeClasses() {
+      return sizeClasses;
+    }
+
+    /**
+     * Over all chunks of the arena, weighted by their free memory.
+     */
+    public double externalFragmentation() {
+      long free = 0;
+      long largest = 0;
+      for (ChunkFragmentation chunk : chunks) {
+        free += chunk.freeBytes();
+        largest += chunk.largestFreeRun();
+      }
+      return free == 0 ? 0 : 1 - (double) largest / free;
+    }
+
+    public double internalFragmentation() {
+      long runBytes = 0;
+      long usedSlotBytes = 0;
+      for (SizeClassOccupancy sizeClass : sizeClasses) {
+        runBytes += sizeClass.runBytes();
+        usedSlotBytes += (long) sizeClass.usedSlots() * sizeClass.allocSize();
+      }
+      return runBytes == 0 ? 0 : 1 - (double) usedSlotBytes / runBytes;
+    }
+
+    private void toJson(StringBuilder json) {
+      json.append("{\"memoryType\":\"").append(memoryType.name().toLowerCase(Locale.ROOT))
+          .append("\",\"index\":").append(index)
+          .append(",\"usedBytes\":").append(usedBytes)
+          .append(",\"hugeReservedBytes\":").append(hugeReservedBytes)
+          .append(",\"externalFragmentation\":").append(ratio(externalFragmentation()))
+          .append(",\"internalFragmentation\":").append(ratio(internalFragmentation()))
+          .append(",\"chunks\":[");
+      for (int i = 0; i < chunks.size(); i++) {
+        if (i > 0) {
+          json.append(',');
+        }
+        chunks.get(i).toJson(json);
+      }
+      json.append("],\"sizeClasses\":[");
+      for (int i = 0; i < sizeClasses.size(); i++) {
+        if (i > 0) {
+          json.append(',');
+        }
+        sizeClasses.get(i).toJson(json);
+      }
+      json.append("]}");
+    }
+  }
+
+  public static final class ChunkFragmentation {
+
+    private final int chunkSize;
+    private final int runSize;
+    private final int usedBytes;
+    private final int largestFreeRun;
+    private final long[] freeRunHistogram;
+
+    ChunkFragmentation(int chunkSize, int runSize, int usedBytes, int largestFreeRun,
+        long[] freeRunHistogram) {
+      this.chunkSize = chunkSize;
+      this.runSize = runSize;
+      this.usedBytes = usedBytes;
+      this.largestFreeRun = largestFreeRun;
+      this.freeRunHistogram = freeRunHistogram;
+    }
+
+    public int chunkSize() {
+      return chunkSize;
+    }
+
+    /**
+     * Bytes in pages that belong to a run, whether or not the slots of a small run are in use.
+     */
+    public int usedBytes() {
+      return usedBytes;
+    }
+
+    public int freeBytes() {
+      return chunkSize - usedBytes;
+    }
+
+    /**
+     * The largest buddy block still free, i.e. the largest run the chunk can hand out.
+     */
+    public int largestFreeRun() {
+      return largestFreeRun;
+    }
+
+    /**
+     * @return how many maximal spans of free pages the chunk has of {@code 2^i} up to {@code
+     * 2^(i+1) - 1} pages
+     */
+    public long[] freeRunHistogram() {
+      return freeRunHistogram.clone();
+    }
+
+    public double externalFragmentation() {
+      int free = freeBytes();
+      return free == 0 ? 0 : 1 - (double) largestFreeRun / free;
+    }
+
+    private void toJson(StringBuilder json) {
+      json.append("{\"chunkSize\":").append(chunkSize)
+          .append(",\"usedBytes\":").append(usedBytes)
+          .append(",\"freeBytes\":").append(freeBytes())
+          .append(",\"largestFreeRun\":").append(largestFreeRun)
+          .append(",\"externalFragmentation\":").append(ratio(externalFragmentation()))
+          .append(",\"freeRunHistogram\":{");
+      boolean first = true;
+      for (int i = 0; i < freeRunHistogram.length; i++) {
+        if (freeRunHistogram[i] != 0) {
+          if (!first) {
+            json.append(',');
+          }
+          first = false;
+          // keyed by the smallest span of the bucket in bytes
+          json.append('"').append((long) runSize << i).append("\":").append(freeRunHistogram[i]);
+        }
+      }
+      json.append("}}");
+    }
+  }
+
+  public static final class SizeClassOccupancy {
+
+    private final int allocSize;
+    private final int runs;
+    private final long runBytes;
+    private final int slots;
+    private final int usedSlots;
+
+    SizeClassOccupancy(int allocSize, int runs, long runBytes, int slots, int usedSlots) {
+      this.allocSize = allocSize;
+      this.runs = runs;
+      this.runBytes = runBytes;
+      this.slots = slots;
+      this.usedSlots = usedSlots;
+    }
+
+    public int allocSize() {
+      return allocSize;
+    }
+
+    public int runs() {
+      return runs;
+    }
+
+    public long runBytes() {
+      return runBytes;
+    }
+
+    public int slots() {
+      return slots;
+    }
+
+    public int usedSlots() {
+      return usedSlots;
+    }
+
+    private void toJson(StringBuilder json) {
+      json.append("{\"allocSize\":").append(allocSize)
+          .append(",\"runs\":").append(runs)
+          .append(",\"runBytes\":").append(runBytes)
+          .append(",\"slots\":").append(slots)
+          .append(",\"usedSlots\":").append(usedSlots)
+          .append('}');
+    }
+  }
+}
@@ -0,0 +1,254 @@
+package com.lonicera.alloc;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Huge allocations, i.e. more than half a chunk, rounded up to a multiple of the chunk size and
+ * carved out of large regions.
+ *
+ * Free extents of all regions sit in one red-black tree ordered by (length, region, offset), so a
+ * ceiling lookup is a best fit that prefers the oldest region and the lowest offset. Each region
+ * also indexes its free extents by offset, which is how a freed extent finds and merges with its
+ * free neighbours. A region that becomes entirely free is dropped as soon as the reserved total
+ * exceeds {@code retainedLimit}, or by a {@link #trim(long)} once it has been free for long
+ * enough; direct regions are returned to the OS through their cleaner. A new region is only made
+ * larger than the request if the rest of it may be retained.
+ */
+class HugeAllocator {
+
+  static final class Region {
+
+    private final long id;
+    // what the chunk source returned; memory is the aligned part of it
+    private final ByteBuffer allocatedMemory;
+    private final ByteBuffer memory;
+    private final TreeMap<Integer, UnpooledChunk> freeExtents;
+    private int usedSize;
+    // when usedSize last dropped to 0
+    private long idleSince;
+
+    Region(long id, ByteBuffer allocatedMemory, ByteBuffer memory) {
+      this.id = id;
+      this.allocatedMemory = allocatedMemory;
+      this.memory = memory;
+      this.freeExtents = new TreeMap<>();
+    }
+
+    ByteBuffer memory() {
+      return memory;
+    }
+
+    int size() {
+      return memory.capacity();
+    }
+  }
+
+  private static final Comparator<UnpooledChunk> BEST_FIT = new Comparator<UnpooledChunk>() {
+    @Override
+    public int compare(UnpooledChunk a, UnpooledChunk b) {
+      int result = Integer.compare(a.length(), b.length());
+      if (result == 0) {
+        result = Long.compare(a.region().id, b.region().id);
+      }
+      if (result == 0) {
+        result = Integer.compare(a.offset(), b.offset());
+      }
+      return result;
+    }
+  };
+
+  private final int chunkSize;
+  private final int regionSize;
+  private final long retainedLimit;
+  private final int alignment;
+  private final ChunkSource chunkSource;
+  private final ArenaMetrics metrics;
+  private final TreeSet<UnpooledChunk> freeExtents;
+  private final Region probeRegion;
+  private final UnpooledChunk probe;
+  private long nextRegionId;
+  private long reservedSize;
+
+  /**
+   * @param alignment power of two every region starts on, measured against the native address of
+   * direct memory
+   */
+  public HugeAllocator(int chunkSize, int regionSize, long retainedLimit, int alignment,
+      ChunkSource chunkSource, ArenaMetrics metrics) {
+    if (regionSize < chunkSize || regionSize % chunkSize != 0) {
+      throw new IllegalArgumentException("region size must be a multiple of chunk size");
+    }
+    this.chunkSize = chunkSize;
+    this.regionSize = regionSize;
+    this.retainedLimit = retainedLimit;
+    this.alignment = alignment;
+    this.chunkSource = chunkSource;
+    this.metrics = metrics;
+    this.freeExtents = new TreeSet<>(BEST_FIT);
+    this.probeRegion = new Region(Long.MIN_VALUE, null, null);
+    this.probe = new UnpooledChunk(this, probeRegion, Integer.MIN_VALUE, 0);
+    this.nextRegionId = 0;
+  }
+
+  public synchronized UnpooledChunk alloc(int capacity) {
+    int length = alignLength(capacity);
+    probe.length(length);
+    UnpooledChunk extent = freeExtents.ceiling(probe);
+    if (extent == null) {
+      // the rest of a region larger than the request would only be freed again at once
+      boolean retainable = length < regionSize && reservedSize + regionSize <= retainedLimit;
+      extent = newRegion(retainable ? regionSize : length);
+    }
+    removeFree(extent);
+    if (extent.length() > length) {
+      UnpooledChunk remain = new UnpooledChunk(
+          this,
+          extent.region(),
+          extent.offset() + length,
+          extent.length() - length
+      );
+      addFree(remain);
+      extent.length(length);
+    }
+    extent.region().usedSize += length;
+    metrics.allocated(SizeClass.HUGE, length);
+    return extent;
+  }
+
+  /**
+   * The largest capacity whose extent, rounded up to chunks, still fits a region with its
+   * alignment slack.
+   */
+  int maxCapacity() {
+    return (Integer.MAX_VALUE - alignment) / chunkSize * chunkSize;
+  }
+
+  /**
+   * Grows {@code extent} to hold {@code capacity} by taking the front of the free extent right
+   * after it.
+   *
+   * @return false if there is no such free extent or it is too short
+   */
+  public synchronized boolean grow(UnpooledChunk extent, int capacity) {
+    int length = alignLength(capacity);
+    int extra = length - extent.length();
+    if (extra <= 0) {
+      return true;
+    }
+    Region region = extent.region();
+    UnpooledChunk next = region.freeExtents.get(extent.offset() + extent.length());
+    if (next == null || next.length() < extra) {
+      return false;
+    }
+    removeFree(next);
+    if (next.length() > extra) {
+      next.offset(next.offset() + extra);
+      next.length(next.length() - extra);
+      addFree(next);
+    }
+    metrics.freed(SizeClass.HUGE, extent.length());
+    metrics.allocated(SizeClass.HUGE, length);
+    extent.length(length);
+    region.usedSize += extra;
+    return true;
+  }
+
+  public synchronized void free(UnpooledChunk extent) {
+    Region region = extent.region();
+    region.usedSize -= extent.length();
+    metrics.freed(SizeClass.HUGE, extent.length());
+
+    Map.Entry<Integer, UnpooledChunk> pre = region.freeExtents.lowerEntry(extent.offset());
+    if (pre != null && pre.getValue().offset() + pre.getValue().length() == extent.offset()) {
+      UnpooledChunk preExtent = pre.getValue();
+      removeFree(preExtent);
+      extent.length(preExtent.length() + extent.length());
+      extent.offset(preExtent.offset());
+    }
+    UnpooledChunk next = region.freeExtents.get(extent.offset() + extent.length());
+    if (next != null) {
+      removeFree(next);
+      extent.length(extent.length() + next.length());
+    }
+
+    if (region.usedSize == 0) {
+      if (reservedSize > retainedLimit) {
+        reservedSize -= region.size();
+        DirectBufferCleaner.free(region.allocatedMemory);
+        return;
+      }
+      region.idleSince = System.nanoTime();
+    }
+    addFree(extent);
+  }
+
+  /**
+   * Frees every region nothing is carved from, however little is retained.
+   */
+  public void trim() {
+    trim(0);
+  }
+
+  /**
+   * Frees the regions nothing has been carved from for at least {@code idleNanos}.
+   */
+  public synchronized void trim(long idleNanos) {
+    freeEmptyRegions(idleNanos);
+  }
+
+  public synchronized long reservedSize() {
+    return reservedSize;
+  }
+
+  private int alignLength(int capacity) {
+    int remain = capacity % chunkSize;
+    if (remain == 0 || capacity > Integer.MAX_VALUE - chunkSize) {
+      return capacity;
+    }
+    return capacity + chunkSize - remain;
+  }
+
+  private UnpooledChunk newRegion(int size) {
+    if (reservedSize + size > retainedLimit) {
+      freeEmptyRegions(0);
+    }
+    int slack = chunkSource.memoryType() == MemoryType.HEAP ? 0 : alignment;
+    ByteBuffer allocatedMemory = chunkSource.allocate(size + slack);
+    Region region = new Region(nextRegionId++, allocatedMemory,
+        DirectBufferAddress.alignedSlice(allocatedMemory, alignment, size));
+    reservedSize += size;
+    UnpooledChunk extent = new UnpooledChunk(this, region, 0, size);
+    addFree(extent);
+    return extent;
+  }
+
+  private void freeEmptyRegions(long idleNanos) {
+    long now = System.nanoTime();
+    Iterator<UnpooledChunk> iterator = freeExtents.iterator();
+    while (iterator.hasNext()) {
+      UnpooledChunk extent = iterator.next();
+      Region region = extent.region();
+      if (region.usedSize == 0 && now - region.idleSince >= idleNanos) {
+        iterator.remove();
+        region.freeExtents.clear();
+        reservedSize -= region.size();
+        DirectBufferCleaner.free(region.allocatedMemory);
+      }
+    }
+  }
+
+  private void addFree(UnpooledChunk extent) {
+    freeExtents.add(extent);
+    extent.region().freeExtents.put(extent.offset(), extent);
+  }
+
+  private void removeFree(UnpooledChunk extent) {
+    freeExtents.remove(extent);
+    extent.region().freeExtents.remove(extent.offset());
+  }
+}
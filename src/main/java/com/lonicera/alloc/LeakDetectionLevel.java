@@ -0,0 +1,21 @@
+package com.lonicera.alloc;
+
+/**
+ * How many allocations {@link MemoryAllocator} watches for buffers that are garbage collected
+ * without being released.
+ */
+public enum LeakDetectionLevel {
+  /**
+   * Nothing is tracked; an allocation pays one volatile read.
+   */
+  DISABLED,
+  /**
+   * One allocation in every sampling interval, picked at random, is tracked. Cheap enough to stay
+   * on in production, and a steady leak still shows up soon.
+   */
+  SAMPLED,
+  /**
+   * Every allocation is tracked; for tests.
+   */
+  PARANOID
+}
@@ -0,0 +1,168 @@
+package com.lonicera.alloc;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks a sample of buffers with phantom references. A tracked buffer that is released closes
+ * its tracker; one that is garbage collected first leaves its tracker on the queue, and the next
+ * allocation or {@link MemoryAllocator#trim()} reports where it was allocated and last touched and
+ * gives its memory back to the pool, which would otherwise have lost it for good.
+ */
+final class LeakDetector {
+
+  static final int DEFAULT_SAMPLING_INTERVAL = 128;
+
+  // access records kept per tracked buffer, the oldest is dropped first
+  private static final int MAX_RECORDS = 4;
+
+  private static final Logger LOGGER = Logger.getLogger(LeakDetector.class.getName());
+
+  /**
+   * A stack trace taken when a tracked buffer was allocated or touched.
+   */
+  static final class Record extends Throwable {
+
+    private static final long serialVersionUID = 1L;
+
+    Record(String hint) {
+      super(hint + " on " + Thread.currentThread().getName());
+    }
+  }
+
+  /**
+   * Holds what is needed to reclaim the memory of the buffer once the buffer itself is gone.
+   */
+  static final class Tracker extends PhantomReference<AbstractByteBuf> {
+
+    private final LeakDetector detector;
+    private final Record creation;
+    // the last MAX_RECORDS accesses, record i at i % MAX_RECORDS
+    private final Record[] records;
+    private int recordCount;
+    private Chunk chunk;
+    private long handle;
+    private int capacity;
+
+    Tracker(LeakDetector detector, AbstractByteBuf byteBuf) {
+      super(byteBuf, detector.queue);
+      this.detector = detector;
+      this.creation = new Record("allocated");
+      this.records = new Record[MAX_RECORDS];
+    }
+
+    synchronized void record(Object hint) {
+      records[recordCount++ % MAX_RECORDS] = new Record(String.valueOf(hint));
+    }
+
+    /**
+     * Points the tracker at the memory the buffer holds, when tracking starts and after a resize.
+     */
+    synchronized void moved(Chunk chunk, long handle, int capacity) {
+      this.chunk = chunk;
+      this.handle = handle;
+      this.capacity = capacity;
+    }
+
+    void close() {
+      detector.trackers.remove(this);
+      clear();
+    }
+
+    private synchronized void reclaim() {
+      if (chunk instanceof PooledChunk) {
+        PooledChunk pooledChunk = (PooledChunk) chunk;
+        pooledChunk.arena().reclaim(pooledChunk, handle, capacity);
+      } else {
+        chunk.release(handle);
+      }
+      chunk = null;
+    }
+
+    private synchronized String report() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("LEAK: a buffer of ").append(capacity)
+          .append(" bytes was garbage collected without release(), its memory is reclaimed.");
+      for (int i = recordCount - 1; i >= 0 && i >= recordCount - MAX_RECORDS; i--) {
+        sb.append("\n#").append(i + 1).append(": ");
+        append(sb, records[i % MAX_RECORDS]);
+      }
+      sb.append("\nCreated at: ");
+      append(sb, creation);
+      return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, Record record) {
+      sb.append(record.getMessage());
+      for (StackTraceElement element : record.getStackTrace()) {
+        sb.append("\n\tat ").append(element);
+      }
+    }
+  }
+
+  private final ReferenceQueue<AbstractByteBuf> queue = new ReferenceQueue<>();
+  // keeps the trackers themselves reachable until they are closed or reported
+  private final Set<Tracker> trackers =
+      Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+  private final AtomicLong leaks = new AtomicLong();
+  private volatile LeakDetectionLevel level = LeakDetectionLevel.DISABLED;
+  private volatile int samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+
+  void level(LeakDetectionLevel level, int samplingInterval) {
+    if (level == null) {
+      throw new IllegalArgumentException("level require not null");
+    }
+    if (samplingInterval < 1) {
+      throw new IllegalArgumentException("samplingInterval require > 0");
+    }
+    this.samplingInterval = samplingInterval;
+    this.level = level;
+  }
+
+  LeakDetectionLevel level() {
+    return level;
+  }
+
+  long leaks() {
+    return leaks.get();
+  }
+
+  /**
+   * Starts tracking {@code byteBuf}, depending on the level, and reports what has leaked so far.
+   */
+  void track(AbstractByteBuf byteBuf) {
+    LeakDetectionLevel level = this.level;
+    if (level == LeakDetectionLevel.DISABLED) {
+      return;
+    }
+    if (level == LeakDetectionLevel.SAMPLED
+        && ThreadLocalRandom.current().nextInt(samplingInterval) != 0) {
+      return;
+    }
+    reportLeaks();
+    Tracker tracker = new Tracker(this, byteBuf);
+    trackers.add(tracker);
+    byteBuf.leak(tracker);
+  }
+
+  void reportLeaks() {
+    Tracker tracker;
+    while ((tracker = (Tracker) queue.poll()) != null) {
+      if (!trackers.remove(tracker)) {
+        continue;
+      }
+      leaks.incrementAndGet();
+      if (LOGGER.isLoggable(Level.SEVERE)) {
+        LOGGER.severe(tracker.report());
+      }
+      tracker.reclaim();
+    }
+  }
+}
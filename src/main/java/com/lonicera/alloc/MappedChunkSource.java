@@ -0,0 +1,50 @@
+package com.lonicera.alloc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps every chunk and huge region from a file of its own in {@code directory}. The file is
+ * unlinked as soon as it is mapped, so nothing is left behind if the process dies, and the mapping
+ * is unmapped when the chunk is destroyed. Mapped memory does not count against
+ * {@code -XX:MaxDirectMemorySize}, and its pages can be written back and evicted by the kernel
+ * under memory pressure; on tmpfs such as {@code /dev/shm} they are only swapped.
+ */
+final class MappedChunkSource implements ChunkSource {
+
+  private final File directory;
+
+  MappedChunkSource(File directory) {
+    if (directory == null || !directory.isDirectory()) {
+      throw new IllegalArgumentException("mapped directory require an existing directory");
+    }
+    this.directory = directory;
+  }
+
+  @Override
+  public MemoryType memoryType() {
+    return MemoryType.MAPPED;
+  }
+
+  @Override
+  public ByteBuffer allocate(int size) {
+    File file = null;
+    try {
+      file = File.createTempFile("chunk-", ".mmap", directory);
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+        randomAccessFile.setLength(size);
+        // the mapping stays valid after the channel is closed
+        return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("map " + size + " bytes in " + directory + " failed", e);
+    } finally {
+      if (file != null && !file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+}
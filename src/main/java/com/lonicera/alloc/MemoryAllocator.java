@@ -1,59 +1,648 @@
 package com.lonicera.alloc;
 
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 public class MemoryAllocator implements Allocator {
 
+  private final MemoryAllocatorConfig config;
+
   private int arenaCount;
 
-  private final ThreadLocal<Arena> arenaThreadLocal;
+  private final Arena[] arenas;
+
+  private final Arena[] heapArenas;
+
+  private final Arena[] mappedArenas;
+
+  private final MemoryType defaultMemoryType;
+
+  private final ArenaSelection arenaSelection;
+
+  private final List<ArenaAllocCache> allocCaches;
+
+  private final ThreadLocal<ArenaAllocCache> allocCacheThreadLocal;
+
+  private final ThreadLocal<ArenaAllocCache> heapAllocCacheThreadLocal;
+
+  private final ThreadLocal<ArenaAllocCache> mappedAllocCacheThreadLocal;
+
+  private final List<ObjectName> registeredNames;
 
+  private final LeakDetector leakDetector;
 
+  private volatile AllocationProfiler profiler;
+
+  private final MemoryMaintainer maintainer;
+
+  /**
+   * @deprecated use {@link #MemoryAllocator(MemoryAllocatorConfig)}
+   */
+  @Deprecated
   public MemoryAllocator(int arenaCount) {
-    if (arenaCount < 1) {
-      throw new IllegalArgumentException("arena count require > 0");
+    this(arenaCount, Arena.DEFAULT_RETAINED_EMPTY_CHUNKS, Arena.DEFAULT_CHUNK_IDLE_MILLIS);
+  }
+
+  /**
+   * @param retainedEmptyChunks empty chunks each arena keeps for reuse, further ones are freed as
+   * soon as they drain
+   * @param chunkIdleMillis how long a retained empty chunk may go unused before it is freed too
+   * @deprecated use {@link #MemoryAllocator(MemoryAllocatorConfig)}
+   */
+  @Deprecated
+  public MemoryAllocator(int arenaCount, int retainedEmptyChunks, long chunkIdleMillis) {
+    this(arenaCount, retainedEmptyChunks, chunkIdleMillis, MemoryType.DIRECT);
+  }
+
+  /**
+   * @param defaultMemoryType where {@link #alloc(int)} places buffers; {@link #alloc(int,
+   * MemoryType)} picks per call. Heap and direct memory are pooled by separate arenas, so each
+   * kind only costs memory once it is used.
+   * @deprecated use {@link #MemoryAllocator(MemoryAllocatorConfig)}
+   */
+  @Deprecated
+  public MemoryAllocator(int arenaCount, int retainedEmptyChunks, long chunkIdleMillis,
+      MemoryType defaultMemoryType) {
+    this(arenaCount, retainedEmptyChunks, chunkIdleMillis, defaultMemoryType, null);
+  }
+
+  /**
+   * @param mappedDirectory where {@link MemoryType#MAPPED} chunks are mapped from, one file per
+   * chunk, e.g. a local disk or {@code /dev/shm}; {@code null} leaves mapped memory unavailable
+   * @deprecated use {@link #MemoryAllocator(MemoryAllocatorConfig)}
+   */
+  @Deprecated
+  public MemoryAllocator(int arenaCount, int retainedEmptyChunks, long chunkIdleMillis,
+      MemoryType defaultMemoryType, File mappedDirectory) {
+    this(arenaCount, retainedEmptyChunks, chunkIdleMillis, defaultMemoryType, mappedDirectory,
+        ArenaSelection.THREAD_LOCAL);
+  }
+
+  /**
+   * @param arenaSelection {@link ArenaSelection#STRIPED} for virtual threads or thousands of
+   * platform threads, where a bound thread cache per thread costs more than it saves
+   * @deprecated use {@link #MemoryAllocator(MemoryAllocatorConfig)}
+   */
+  @Deprecated
+  public MemoryAllocator(int arenaCount, int retainedEmptyChunks, long chunkIdleMillis,
+      MemoryType defaultMemoryType, File mappedDirectory, ArenaSelection arenaSelection) {
+    this(MemoryAllocatorConfig.builder()
+        .arenaCount(arenaCount)
+        .retainedEmptyChunks(retainedEmptyChunks)
+        .chunkIdleMillis(chunkIdleMillis)
+        .defaultMemoryType(defaultMemoryType)
+        .mappedDirectory(mappedDirectory)
+        .arenaSelection(arenaSelection)
+        .build());
+  }
+
+  /**
+   * An allocator tuned by hand or by {@link MemoryAllocatorConfig#load(File) loading} what an
+   * {@link AllocationProfiler} recommended on an earlier run.
+   */
+  public MemoryAllocator(MemoryAllocatorConfig config) {
+    if (config == null) {
+      throw new IllegalArgumentException("config require not null");
+    }
+    this.config = config;
+    this.arenaCount = config.arenaCount();
+    this.defaultMemoryType = config.defaultMemoryType();
+    this.arenaSelection = config.arenaSelection();
+    this.arenas = initAreas(ChunkSource.DIRECT, config);
+    this.heapArenas = initAreas(ChunkSource.HEAP, config);
+    this.mappedArenas = config.mappedDirectory() == null ? null
+        : initAreas(new MappedChunkSource(config.mappedDirectory()), config);
+    this.allocCaches = new ArrayList<>();
+    this.allocCacheThreadLocal = new ThreadLocal<>();
+    this.heapAllocCacheThreadLocal = new ThreadLocal<>();
+    this.mappedAllocCacheThreadLocal = mappedArenas == null ? null : new ThreadLocal<>();
+    this.registeredNames = new ArrayList<>();
+    this.leakDetector = new LeakDetector();
+    if (!striped()) {
+      ThreadCacheSweeper.register(this);
+    }
+    if (config.maintenanceIntervalMillis() > 0) {
+      this.maintainer = new MemoryMaintainer(this, config.maintenanceIntervalMillis(),
+          config.lowWatermark(), config.highWatermark());
+      maintainer.start();
+    } else {
+      this.maintainer = null;
     }
-    this.arenaCount = arenaCount;
-    this.arenaThreadLocal = arenaThreadLocal(arenaCount);
   }
 
-  private ThreadLocal<Arena> arenaThreadLocal(final int arenaCount) {
-    return new ThreadLocal<Arena>() {
-      private int index = 0;
-      private Arena[] arenas = initAreas(arenaCount);
+  private Arena[] initAreas(ChunkSource chunkSource, MemoryAllocatorConfig config) {
+    Arena[] arenas = new Arena[config.arenaCount()];
+    for (int i = 0; i < arenas.length; i++) {
+      arenas[i] = new Arena(this, chunkSource, config);
+    }
+    return arenas;
+  }
 
-      private Arena[] initAreas(int arenaCount){
-        Arena[] arenas = new Arena[arenaCount];
-        for(int i = 0; i < arenas.length; i++){
-          arenas[i] = new Arena();
-        }
+  private Arena[] arenas(MemoryType memoryType) {
+    switch (memoryType) {
+      case HEAP:
+        return heapArenas;
+      case MAPPED:
+        return mappedArenas;
+      default:
         return arenas;
+    }
+  }
+
+  private Arena[] stripedArenas(MemoryType memoryType) {
+    Arena[] arenas = arenas(memoryType);
+    if (arenas == null) {
+      throw new IllegalStateException("no mapped directory configured");
+    }
+    return arenas;
+  }
+
+  private ThreadLocal<ArenaAllocCache> allocCacheThreadLocal(MemoryType memoryType) {
+    switch (memoryType) {
+      case HEAP:
+        return heapAllocCacheThreadLocal;
+      case MAPPED:
+        if (mappedAllocCacheThreadLocal == null) {
+          throw new IllegalStateException("no mapped directory configured");
+        }
+        return mappedAllocCacheThreadLocal;
+      default:
+        return allocCacheThreadLocal;
+    }
+  }
+
+  private Arena[][] allArenas() {
+    return mappedArenas == null
+        ? new Arena[][]{arenas, heapArenas}
+        : new Arena[][]{arenas, heapArenas, mappedArenas};
+  }
+
+  /**
+   * The calling thread's cache for {@code memoryType}, binding the thread to the least loaded arena
+   * on its first allocation of that type.
+   */
+  private ArenaAllocCache allocCache(MemoryType memoryType) {
+    ThreadLocal<ArenaAllocCache> threadLocal = allocCacheThreadLocal(memoryType);
+    ArenaAllocCache allocCache = threadLocal.get();
+    if (allocCache == null) {
+      synchronized (allocCaches) {
+        freeDeadThreadCaches();
+        allocCache = bind(Thread.currentThread(), leastLoadedArena(arenas(memoryType)));
       }
+      threadLocal.set(allocCache);
+    }
+    return allocCache;
+  }
 
-      @Override
-      protected Arena initialValue() {
-        synchronized (this) {
-          if (index > arenaCount) {
-            index = index % arenaCount;
+  private ArenaAllocCache bind(Thread thread, Arena arena) {
+    arena.bind();
+    ArenaAllocCache allocCache = arena.newAllocCache(thread);
+    allocCaches.add(allocCache);
+    return allocCache;
+  }
+
+  /**
+   * The arena with the fewest live threads bound to it; ties go to the one that has taken its lock
+   * the least, i.e. the one with the least slow-path traffic.
+   */
+  private Arena leastLoadedArena(Arena[] arenas) {
+    Arena leastLoaded = arenas[0];
+    for (int i = 1; i < arenaCount; i++) {
+      Arena arena = arenas[i];
+      if (arena.boundThreads() < leastLoaded.boundThreads()
+          || (arena.boundThreads() == leastLoaded.boundThreads()
+          && arena.lockAcquired() < leastLoaded.lockAcquired())) {
+        leastLoaded = arena;
+      }
+    }
+    return leastLoaded;
+  }
+
+  /**
+   * Hands the entries of terminated threads back to their arenas and releases their bindings, and
+   * flushes the caches of live threads that have left them unused for {@link
+   * MemoryAllocatorConfig#threadCacheIdleMillis()}, see {@link ThreadCacheSweeper}. Dead threads
+   * are also swept whenever a thread binds.
+   */
+  void sweepThreadCaches() {
+    synchronized (allocCaches) {
+      freeDeadThreadCaches();
+      reclaimIdleThreadCaches();
+    }
+  }
+
+  // under the lock of allocCaches
+  private void reclaimIdleThreadCaches() {
+    long now = System.nanoTime();
+    for (ArenaAllocCache allocCache : allocCaches) {
+      allocCache.reclaimIfIdle(now, config.threadCacheIdleMillis());
+    }
+  }
+
+  // under the lock of allocCaches
+  private void freeDeadThreadCaches() {
+    Iterator<ArenaAllocCache> iterator = allocCaches.iterator();
+    while (iterator.hasNext()) {
+      ArenaAllocCache allocCache = iterator.next();
+      if (!allocCache.thread().isAlive()) {
+        allocCache.free();
+        allocCache.arena().unbind();
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Called by a hot thread whose arena lock is contended: moves the calling thread to the least
+   * loaded arena if that arena has at least two fewer threads bound, so the move actually evens
+   * the load out instead of swapping the hot spot.
+   */
+  void rebalance(ArenaAllocCache allocCache) {
+    ArenaAllocCache moved;
+    synchronized (allocCaches) {
+      freeDeadThreadCaches();
+      Arena from = allocCache.arena();
+      Arena to = leastLoadedArena(arenas(from.memoryType()));
+      if (to.boundThreads() + 1 >= from.boundThreads()) {
+        return;
+      }
+      allocCaches.remove(allocCache);
+      from.unbind();
+      moved = bind(allocCache.thread(), to);
+    }
+    allocCacheThreadLocal(moved.arena().memoryType()).set(moved);
+    allocCache.free();
+  }
+
+  public MemoryAllocator() {
+    this(MemoryAllocatorConfig.builder().build());
+  }
+
+  public MemoryAllocatorConfig config() {
+    return config;
+  }
+
+  /**
+   * Starts recording the size of every allocation request, replacing any profiler already
+   * running. Recording costs one striped counter increment per request; when no profiler runs it
+   * costs a volatile read.
+   */
+  public AllocationProfiler startProfiling() {
+    AllocationProfiler profiler = new AllocationProfiler(this);
+    this.profiler = profiler;
+    return profiler;
+  }
+
+  public void stopProfiling() {
+    profiler = null;
+  }
+
+  boolean striped() {
+    return arenaSelection == ArenaSelection.STRIPED;
+  }
+
+  /**
+   * The calling thread's cache for {@code memoryType} if it has allocated memory of that type,
+   * otherwise null: a thread that only releases buffers is never bound to an arena.
+   */
+  ArenaAllocCache threadAllocCache(MemoryType memoryType) {
+    return allocCacheThreadLocal(memoryType).get();
+  }
+
+  /**
+   * Reclaims the leaked buffers found so far, applies the frees other threads deferred to each
+   * arena and frees the memory of every empty chunk that has sat unused for longer than the idle
+   * time. Allocating threads do this on their own every few thousand allocations; an application
+   * that goes quiet after a burst can call this to give the memory back sooner.
+   */
+  public void trim() {
+    leakDetector.reportLeaks();
+    for (Arena[] arenas : allArenas()) {
+      for (Arena arena : arenas) {
+        arena.trim();
+      }
+    }
+  }
+
+  /**
+   * One round of the maintenance thread, see {@link MemoryMaintainer}. Every live thread cache is
+   * trimmed by its thread on that thread's next allocation or free, and the caches of threads that
+   * have not used them for {@link MemoryAllocatorConfig#threadCacheIdleMillis()} are flushed here.
+   *
+   * @param pressure free empty chunks and huge regions at once rather than once idle
+   * @param flushIdleCaches flush every cache not used since the previous round, however briefly
+   * its thread has been idle
+   */
+  void maintain(boolean pressure, boolean flushIdleCaches) {
+    synchronized (allocCaches) {
+      freeDeadThreadCaches();
+      long now = System.nanoTime();
+      long idleMillis = flushIdleCaches ? 0 : config.threadCacheIdleMillis();
+      for (ArenaAllocCache allocCache : allocCaches) {
+        allocCache.requestTrim();
+        allocCache.reclaimIfIdle(now, idleMillis);
+      }
+    }
+    leakDetector.reportLeaks();
+    for (Arena[] arenas : allArenas()) {
+      for (Arena arena : arenas) {
+        arena.trim(pressure);
+      }
+    }
+  }
+
+  /**
+   * Ends the maintenance thread started for a configuration with a {@link
+   * MemoryAllocatorConfig#maintenanceIntervalMillis()}; without one this does nothing.
+   */
+  public void stopMaintenance() {
+    if (maintainer != null) {
+      maintainer.stop();
+    }
+  }
+
+  /**
+   * Watches allocations for buffers that are garbage collected without being released, see
+   * {@link LeakDetectionLevel}. A leak is logged with the stack of the allocation and of the last
+   * few {@link ByteBuf#touch(Object)} calls and resizes, and its memory goes back to the pool.
+   * Leaks are found on later tracked allocations and on {@link #trim()}.
+   *
+   * @param samplingInterval on average one in this many allocations is tracked when
+   * {@link LeakDetectionLevel#SAMPLED}
+   */
+  public void leakDetection(LeakDetectionLevel level, int samplingInterval) {
+    leakDetector.level(level, samplingInterval);
+  }
+
+  public void leakDetection(LeakDetectionLevel level) {
+    leakDetection(level, LeakDetector.DEFAULT_SAMPLING_INTERVAL);
+  }
+
+  /**
+   * Where the free memory of every arena sits and how much of it is lost to fragmentation, to tell
+   * whether the chunk size or the size classes suit the workload. Arenas are copied one at a time,
+   * each under its own lock only as long as the copy takes.
+   */
+  public FragmentationSnapshot fragmentationSnapshot() {
+    List<FragmentationSnapshot.ArenaFragmentation> fragmentations = new ArrayList<>();
+    for (Arena[] arenas : allArenas()) {
+      for (int i = 0; i < arenaCount; i++) {
+        fragmentations.add(arenas[i].fragmentation(i));
+      }
+    }
+    return new FragmentationSnapshot(fragmentations);
+  }
+
+  long leaksDetected() {
+    return leakDetector.leaks();
+  }
+
+  ArenaMetrics[] arenaMetrics() {
+    Arena[][] allArenas = allArenas();
+    ArenaMetrics[] metrics = new ArenaMetrics[arenaCount * allArenas.length];
+    for (int i = 0; i < allArenas.length; i++) {
+      for (int j = 0; j < arenaCount; j++) {
+        metrics[i * arenaCount + j] = allArenas[i][j].metrics();
+      }
+    }
+    return metrics;
+  }
+
+  int arenaCount() {
+    return arenaCount;
+  }
+
+  int threadCacheCount() {
+    synchronized (allocCaches) {
+      return allocCaches.size();
+    }
+  }
+
+  /**
+   * Live threads bound to an arena. A thread has a cache, and a binding, per memory type it
+   * allocates, so this can be fewer than {@link #threadCacheCount()}.
+   */
+  int boundThreadCount() {
+    synchronized (allocCaches) {
+      Set<Thread> threads = new HashSet<>();
+      for (ArenaAllocCache allocCache : allocCaches) {
+        threads.add(allocCache.thread());
+      }
+      return threads.size();
+    }
+  }
+
+  int chunkSize() {
+    return arenas[0].chunkSize();
+  }
+
+  int runSize() {
+    return arenas[0].runSize();
+  }
+
+  /**
+   * Registers the allocator totals as {@code com.lonicera.alloc:type=MemoryAllocator,name=<name>}
+   * and every arena as {@code com.lonicera.alloc:type=Arena,allocator=<name>,
+   * memory=<direct|heap|mapped>,index=<i>} with the platform MBean server.
+   */
+  public void registerMBeans(String name) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    synchronized (registeredNames) {
+      if (!registeredNames.isEmpty()) {
+        throw new IllegalStateException("MBeans already registered");
+      }
+      try {
+        register(server, new ObjectName("com.lonicera.alloc:type=MemoryAllocator,name="
+            + ObjectName.quote(name)), new MemoryAllocatorMetrics(this));
+        for (Arena[] arenas : allArenas()) {
+          for (int i = 0; i < arenaCount; i++) {
+            registerArena(server, name, arenas[i], i);
           }
-          Arena arena = arenas[index];
-          index++;
-          return arena;
         }
+      } catch (JMException e) {
+        unregisterMBeans();
+        throw new IllegalStateException("register MBeans failed", e);
       }
-    };
+    }
   }
 
-  public MemoryAllocator() {
-    this(Runtime.getRuntime().availableProcessors());
+  private void registerArena(MBeanServer server, String name, Arena arena, int index)
+      throws JMException {
+    register(server, new ObjectName("com.lonicera.alloc:type=Arena,allocator="
+        + ObjectName.quote(name) + ",memory=" + arena.memoryType().name().toLowerCase()
+        + ",index=" + index), arena.metrics());
+  }
+
+  private void register(MBeanServer server, ObjectName objectName, Object mbean)
+      throws JMException {
+    server.registerMBean(mbean, objectName);
+    registeredNames.add(objectName);
+  }
+
+  public void unregisterMBeans() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    synchronized (registeredNames) {
+      for (ObjectName objectName : registeredNames) {
+        try {
+          server.unregisterMBean(objectName);
+        } catch (JMException e) {
+          // already gone
+        }
+      }
+      registeredNames.clear();
+    }
   }
 
   @Override
   public ByteBuf alloc(int capacity) {
+    return alloc(capacity, defaultMemoryType);
+  }
+
+  @Override
+  public ByteBuf alloc(int capacity, MemoryType memoryType) {
+    return alloc(capacity, 1, memoryType);
+  }
+
+  @Override
+  public ByteBuf alloc(int capacity, int alignment) {
+    return alloc(capacity, alignment, defaultMemoryType);
+  }
+
+  @Override
+  public ByteBuf alloc(int capacity, int alignment, MemoryType memoryType) {
     if(capacity < 1){
       throw new IllegalArgumentException("capacity require > 0");
     }
-    Arena arena = arenaThreadLocal.get();
-    ByteBuf byteBuf = arena.alloc(capacity);
+    if (alignment < 1 || (alignment & (alignment - 1)) != 0 || alignment > runSize()) {
+      throw new IllegalArgumentException(
+          "alignment require a power of two <= " + runSize() + ", but " + alignment);
+    }
+    AllocationProfiler profiler = this.profiler;
+    if (profiler != null) {
+      profiler.record(capacity, 1);
+    }
+    ByteBuf byteBuf = allocInternal(capacity, alignment, memoryType);
+    leakDetector.track((AbstractByteBuf) byteBuf);
+    return byteBuf;
+  }
+
+  /**
+   * Allocates as {@link #alloc(int, int, MemoryType)} does, without recording the request or
+   * tracking the buffer: for memory a buffer that already counts moves to on a resize.
+   */
+  ByteBuf allocInternal(int capacity, int alignment, MemoryType memoryType) {
+    if (striped()) {
+      return allocStriped(capacity, alignment, memoryType);
+    }
+    ArenaAllocCache allocCache = allocCache(memoryType);
+    return allocCache.arena().alloc(allocCache, capacity, alignment);
+  }
+
+  /**
+   * The buffers share one trip to the arena: whatever the thread cache cannot serve is allocated
+   * under a single acquisition of the arena lock instead of one per buffer.
+   */
+  @Override
+  public void alloc(int capacity, int count, ByteBuf[] out) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity require > 0");
+    }
+    if (count < 0 || count > out.length) {
+      throw new IndexOutOfBoundsException(String.format(
+          "count: %d (expected: range(0, %d))", count, out.length));
+    }
+    AllocationProfiler profiler = this.profiler;
+    if (profiler != null) {
+      profiler.record(capacity, count);
+    }
+    if (striped()) {
+      Arena[] arenas = stripedArenas(defaultMemoryType);
+      int probe = ThreadProbe.get();
+      Arena arena = arenas[(probe & Integer.MAX_VALUE) % arenas.length];
+      long contended = arena.lockContended();
+      arena.alloc(null, capacity, out, count);
+      if (arena.lockContended() != contended) {
+        ThreadProbe.advance(probe);
+      }
+    } else {
+      ArenaAllocCache allocCache = allocCache(defaultMemoryType);
+      allocCache.arena().alloc(allocCache, capacity, out, count);
+    }
+    for (int i = 0; i < count; i++) {
+      leakDetector.track((AbstractByteBuf) out[i]);
+    }
+  }
+
+  /**
+   * Pooled buffers whose last reference goes are handed back per arena in one batch: one lock
+   * acquisition for the lot, and each chunk moved between the usage lists once.
+   */
+  @Override
+  public void releaseAll(ByteBuf[] byteBufs) {
+    PooledByteBuf[] freed = new PooledByteBuf[byteBufs.length];
+    int count = 0;
+    try {
+      for (ByteBuf byteBuf : byteBufs) {
+        if (byteBuf instanceof PooledByteBuf) {
+          PooledByteBuf pooled = (PooledByteBuf) byteBuf;
+          if (pooled.releaseRefCnt(1)) {
+            pooled.clearMemory();
+            if (pooled.isHuge()) {
+              pooled.freeHuge();
+            } else {
+              freed[count++] = pooled;
+            }
+          }
+        } else if (byteBuf != null) {
+          byteBuf.release();
+        }
+      }
+    } finally {
+      free(freed, count);
+    }
+  }
+
+  private static void free(PooledByteBuf[] freed, int count) {
+    int from = 0;
+    while (from < count) {
+      // gather the buffers of the first arena left at the front of the range
+      Arena arena = freed[from].chunk().arena();
+      int to = from + 1;
+      for (int i = to; i < count; i++) {
+        if (freed[i].chunk().arena() == arena) {
+          PooledByteBuf byteBuf = freed[i];
+          freed[i] = freed[to];
+          freed[to++] = byteBuf;
+        }
+      }
+      arena.free(freed, from, to);
+      from = to;
+    }
+  }
+
+  /**
+   * Allocates from the arena the calling thread's probe points at. If any thread had to wait for
+   * that arena's lock meanwhile, the probe moves on, so the next allocation of this thread tries
+   * another arena and colliding threads drift apart.
+   */
+  private ByteBuf allocStriped(int capacity, int alignment, MemoryType memoryType) {
+    Arena[] arenas = stripedArenas(memoryType);
+    int probe = ThreadProbe.get();
+    Arena arena = arenas[(probe & Integer.MAX_VALUE) % arenas.length];
+    long contended = arena.lockContended();
+    ByteBuf byteBuf = arena.alloc(null, capacity, alignment);
+    if (arena.lockContended() != contended) {
+      ThreadProbe.advance(probe);
+    }
     return byteBuf;
   }
 
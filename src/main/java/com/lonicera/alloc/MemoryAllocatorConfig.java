@@ -0,0 +1,541 @@
+package com.lonicera.alloc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Every tunable of a {@link MemoryAllocator}, its arenas and its thread caches. Built with {@link
+ * #builder()}; unset values keep the defaults {@link MemoryAllocator#MemoryAllocator()} uses.
+ *
+ * A configuration round-trips through {@link Properties}, one key per builder method, so the one
+ * an {@link AllocationProfiler} recommends can be stored and loaded on the next start.
+ */
+public final class MemoryAllocatorConfig {
+
+  // HugeAllocator maps regions of a few chunks, which have to stay addressable by an int
+  static final int MAX_CHUNK_SIZE = 1 << 27;
+
+  private final int arenaCount;
+  private final int chunkSize;
+  private final int runSize;
+  private final int subPageSize;
+  private final int quantumSize;
+  private final int tinySize;
+  private final int tinyCacheCount;
+  private final int quantumCacheCount;
+  private final int subPageCacheCount;
+  private final int largeCacheCount;
+  private final int maxCachedCapacity;
+  private final long threadCacheIdleMillis;
+  private final int retainedEmptyChunks;
+  private final long chunkIdleMillis;
+  private final int hugeRegionChunks;
+  private final int hugeRetainedChunks;
+  private final MemoryType defaultMemoryType;
+  private final File mappedDirectory;
+  private final ArenaSelection arenaSelection;
+  private final long maintenanceIntervalMillis;
+  private final long lowWatermark;
+  private final long highWatermark;
+
+  private MemoryAllocatorConfig(Builder builder) {
+    this.arenaCount = builder.arenaCount;
+    this.chunkSize = builder.chunkSize;
+    this.runSize = builder.runSize;
+    this.subPageSize = builder.subPageSize;
+    this.quantumSize = builder.quantumSize;
+    this.tinySize = builder.tinySize;
+    this.tinyCacheCount = builder.tinyCacheCount;
+    this.quantumCacheCount = builder.quantumCacheCount;
+    this.subPageCacheCount = builder.subPageCacheCount;
+    this.largeCacheCount = builder.largeCacheCount;
+    this.maxCachedCapacity = builder.maxCachedCapacity;
+    this.threadCacheIdleMillis = builder.threadCacheIdleMillis;
+    this.retainedEmptyChunks = builder.retainedEmptyChunks;
+    this.chunkIdleMillis = builder.chunkIdleMillis;
+    this.hugeRegionChunks = builder.hugeRegionChunks;
+    this.hugeRetainedChunks = builder.hugeRetainedChunks;
+    this.defaultMemoryType = builder.defaultMemoryType;
+    this.mappedDirectory = builder.mappedDirectory;
+    this.arenaSelection = builder.arenaSelection;
+    this.maintenanceIntervalMillis = builder.maintenanceIntervalMillis;
+    this.lowWatermark = builder.lowWatermark;
+    this.highWatermark = builder.highWatermark;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public Builder toBuilder() {
+    return new Builder()
+        .arenaCount(arenaCount)
+        .chunkSize(chunkSize)
+        .runSize(runSize)
+        .subPageSize(subPageSize)
+        .quantumSize(quantumSize)
+        .tinySize(tinySize)
+        .tinyCacheCount(tinyCacheCount)
+        .quantumCacheCount(quantumCacheCount)
+        .subPageCacheCount(subPageCacheCount)
+        .largeCacheCount(largeCacheCount)
+        .maxCachedCapacity(maxCachedCapacity)
+        .threadCacheIdleMillis(threadCacheIdleMillis)
+        .retainedEmptyChunks(retainedEmptyChunks)
+        .chunkIdleMillis(chunkIdleMillis)
+        .hugeRegionChunks(hugeRegionChunks)
+        .hugeRetainedChunks(hugeRetainedChunks)
+        .defaultMemoryType(defaultMemoryType)
+        .mappedDirectory(mappedDirectory)
+        .arenaSelection(arenaSelection)
+        .maintenanceIntervalMillis(maintenanceIntervalMillis)
+        .lowWatermark(lowWatermark)
+        .highWatermark(highWatermark);
+  }
+
+  public int arenaCount() {
+    return arenaCount;
+  }
+
+  public int chunkSize() {
+    return chunkSize;
+  }
+
+  public int runSize() {
+    return runSize;
+  }
+
+  public int subPageSize() {
+    return subPageSize;
+  }
+
+  public int quantumSize() {
+    return quantumSize;
+  }
+
+  public int tinySize() {
+    return tinySize;
+  }
+
+  public int tinyCacheCount() {
+    return tinyCacheCount;
+  }
+
+  public int quantumCacheCount() {
+    return quantumCacheCount;
+  }
+
+  public int subPageCacheCount() {
+    return subPageCacheCount;
+  }
+
+  public int largeCacheCount() {
+    return largeCacheCount;
+  }
+
+  public int maxCachedCapacity() {
+    return maxCachedCapacity;
+  }
+
+  public long threadCacheIdleMillis() {
+    return threadCacheIdleMillis;
+  }
+
+  public int retainedEmptyChunks() {
+    return retainedEmptyChunks;
+  }
+
+  public long chunkIdleMillis() {
+    return chunkIdleMillis;
+  }
+
+  public int hugeRegionChunks() {
+    return hugeRegionChunks;
+  }
+
+  public int hugeRetainedChunks() {
+    return hugeRetainedChunks;
+  }
+
+  public MemoryType defaultMemoryType() {
+    return defaultMemoryType;
+  }
+
+  public File mappedDirectory() {
+    return mappedDirectory;
+  }
+
+  public ArenaSelection arenaSelection() {
+    return arenaSelection;
+  }
+
+  public long maintenanceIntervalMillis() {
+    return maintenanceIntervalMillis;
+  }
+
+  public long lowWatermark() {
+    return lowWatermark;
+  }
+
+  public long highWatermark() {
+    return highWatermark;
+  }
+
+  public Properties toProperties() {
+    Properties properties = new Properties();
+    properties.setProperty("arenaCount", String.valueOf(arenaCount));
+    properties.setProperty("chunkSize", String.valueOf(chunkSize));
+    properties.setProperty("runSize", String.valueOf(runSize));
+    properties.setProperty("subPageSize", String.valueOf(subPageSize));
+    properties.setProperty("quantumSize", String.valueOf(quantumSize));
+    properties.setProperty("tinySize", String.valueOf(tinySize));
+    properties.setProperty("tinyCacheCount", String.valueOf(tinyCacheCount));
+    properties.setProperty("quantumCacheCount", String.valueOf(quantumCacheCount));
+    properties.setProperty("subPageCacheCount", String.valueOf(subPageCacheCount));
+    properties.setProperty("largeCacheCount", String.valueOf(largeCacheCount));
+    properties.setProperty("maxCachedCapacity", String.valueOf(maxCachedCapacity));
+    properties.setProperty("threadCacheIdleMillis", String.valueOf(threadCacheIdleMillis));
+    properties.setProperty("retainedEmptyChunks", String.valueOf(retainedEmptyChunks));
+    properties.setProperty("chunkIdleMillis", String.valueOf(chunkIdleMillis));
+    properties.setProperty("hugeRegionChunks", String.valueOf(hugeRegionChunks));
+    properties.setProperty("hugeRetainedChunks", String.valueOf(hugeRetainedChunks));
+    properties.setProperty("defaultMemoryType", defaultMemoryType.name());
+    if (mappedDirectory != null) {
+      properties.setProperty("mappedDirectory", mappedDirectory.getPath());
+    }
+    properties.setProperty("arenaSelection", arenaSelection.name());
+    properties.setProperty("maintenanceIntervalMillis",
+        String.valueOf(maintenanceIntervalMillis));
+    properties.setProperty("lowWatermark", String.valueOf(lowWatermark));
+    properties.setProperty("highWatermark", String.valueOf(highWatermark));
+    return properties;
+  }
+
+  /**
+   * Keys missing from {@code properties} keep their defaults.
+   */
+  public static MemoryAllocatorConfig fromProperties(Properties properties) {
+    Builder builder = builder();
+    String value;
+    if ((value = properties.getProperty("arenaCount")) != null) {
+      builder.arenaCount(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("chunkSize")) != null) {
+      builder.chunkSize(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("runSize")) != null) {
+      builder.runSize(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("subPageSize")) != null) {
+      builder.subPageSize(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("quantumSize")) != null) {
+      builder.quantumSize(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("tinySize")) != null) {
+      builder.tinySize(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("tinyCacheCount")) != null) {
+      builder.tinyCacheCount(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("quantumCacheCount")) != null) {
+      builder.quantumCacheCount(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("subPageCacheCount")) != null) {
+      builder.subPageCacheCount(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("largeCacheCount")) != null) {
+      builder.largeCacheCount(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("maxCachedCapacity")) != null) {
+      builder.maxCachedCapacity(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("threadCacheIdleMillis")) != null) {
+      builder.threadCacheIdleMillis(Long.parseLong(value.trim()));
+    }
+    if ((value = properties.getProperty("retainedEmptyChunks")) != null) {
+      builder.retainedEmptyChunks(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("chunkIdleMillis")) != null) {
+      builder.chunkIdleMillis(Long.parseLong(value.trim()));
+    }
+    if ((value = properties.getProperty("hugeRegionChunks")) != null) {
+      builder.hugeRegionChunks(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("hugeRetainedChunks")) != null) {
+      builder.hugeRetainedChunks(Integer.parseInt(value.trim()));
+    }
+    if ((value = properties.getProperty("defaultMemoryType")) != null) {
+      builder.defaultMemoryType(MemoryType.valueOf(value.trim()));
+    }
+    if ((value = properties.getProperty("mappedDirectory")) != null) {
+      builder.mappedDirectory(new File(value.trim()));
+    }
+    if ((value = properties.getProperty("arenaSelection")) != null) {
+      builder.arenaSelection(ArenaSelection.valueOf(value.trim()));
+    }
+    if ((value = properties.getProperty("maintenanceIntervalMillis")) != null) {
+      builder.maintenanceIntervalMillis(Long.parseLong(value.trim()));
+    }
+    if ((value = properties.getProperty("lowWatermark")) != null) {
+      builder.lowWatermark(Long.parseLong(value.trim()));
+    }
+    if ((value = properties.getProperty("highWatermark")) != null) {
+      builder.highWatermark(Long.parseLong(value.trim()));
+    }
+    return builder.build();
+  }
+
+  public void store(File file) throws IOException {
+    try (OutputStream out = new FileOutputStream(file)) {
+      toProperties().store(out, "com.lonicera.alloc.MemoryAllocatorConfig");
+    }
+  }
+
+  public static MemoryAllocatorConfig load(File file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+    }
+    return fromProperties(properties);
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryAllocatorConfig" + toProperties();
+  }
+
+  public static final class Builder {
+
+    private int arenaCount = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = Arena.DEFAULT_CHUNK_SIZE;
+    private int runSize = Arena.DEFAULT_RUN_SIZE;
+    private int subPageSize = Arena.DEFAULT_SUB_PAGE_SIZE;
+    private int quantumSize = Arena.DEFAULT_QUANTUM_SIZE;
+    private int tinySize = Arena.DEFAULT_TINY_SIZE;
+    private int tinyCacheCount = ArenaAllocCache.DEFAULT_CACHE_COUNT;
+    private int quantumCacheCount = ArenaAllocCache.DEFAULT_CACHE_COUNT;
+    private int subPageCacheCount = ArenaAllocCache.DEFAULT_CACHE_COUNT;
+    private int largeCacheCount = ArenaAllocCache.DEFAULT_CACHE_COUNT;
+    private int maxCachedCapacity = ArenaAllocCache.DEFAULT_MAX_CACHED_CAPACITY;
+    private long threadCacheIdleMillis = ArenaAllocCache.DEFAULT_IDLE_MILLIS;
+    private int retainedEmptyChunks = Arena.DEFAULT_RETAINED_EMPTY_CHUNKS;
+    private long chunkIdleMillis = Arena.DEFAULT_CHUNK_IDLE_MILLIS;
+    private int hugeRegionChunks = Arena.DEFAULT_HUGE_REGION_CHUNKS;
+    private int hugeRetainedChunks = Arena.DEFAULT_HUGE_RETAINED_CHUNKS;
+    private MemoryType defaultMemoryType = MemoryType.DIRECT;
+    private File mappedDirectory;
+    private ArenaSelection arenaSelection = ArenaSelection.THREAD_LOCAL;
+    private long maintenanceIntervalMillis;
+    private long lowWatermark = Long.MAX_VALUE;
+    private long highWatermark = Long.MAX_VALUE;
+
+    private Builder() {
+    }
+
+    public Builder arenaCount(int arenaCount) {
+      this.arenaCount = arenaCount;
+      return this;
+    }
+
+    /**
+     * Buffers larger than half a chunk are not pooled by size class but get regions of their own.
+     */
+    public Builder chunkSize(int chunkSize) {
+      this.chunkSize = chunkSize;
+      return this;
+    }
+
+    /**
+     * The page size of the buddy tree, at least 4K.
+     */
+    public Builder runSize(int runSize) {
+      this.runSize = runSize;
+      return this;
+    }
+
+    public Builder subPageSize(int subPageSize) {
+      this.subPageSize = subPageSize;
+      return this;
+    }
+
+    public Builder quantumSize(int quantumSize) {
+      this.quantumSize = quantumSize;
+      return this;
+    }
+
+    public Builder tinySize(int tinySize) {
+      this.tinySize = tinySize;
+      return this;
+    }
+
+    /**
+     * Entries the thread cache keeps per tiny size class; the quantum, sub-page and large counts
+     * are the same for their classes.
+     */
+    public Builder tinyCacheCount(int tinyCacheCount) {
+      this.tinyCacheCount = tinyCacheCount;
+      return this;
+    }
+
+    public Builder quantumCacheCount(int quantumCacheCount) {
+      this.quantumCacheCount = quantumCacheCount;
+      return this;
+    }
+
+    public Builder subPageCacheCount(int subPageCacheCount) {
+      this.subPageCacheCount = subPageCacheCount;
+      return this;
+    }
+
+    public Builder largeCacheCount(int largeCacheCount) {
+      this.largeCacheCount = largeCacheCount;
+      return this;
+    }
+
+    /**
+     * Buffers above this size skip the thread cache.
+     */
+    public Builder maxCachedCapacity(int maxCachedCapacity) {
+      this.maxCachedCapacity = maxCachedCapacity;
+      return this;
+    }
+
+    /**
+     * How long a thread may leave its cache unused, e.g. while parked, before the sweeper thread
+     * hands the cached entries back to the arena.
+     */
+    public Builder threadCacheIdleMillis(long threadCacheIdleMillis) {
+      this.threadCacheIdleMillis = threadCacheIdleMillis;
+      return this;
+    }
+
+    /**
+     * Empty chunks each arena keeps for reuse, further ones are freed as soon as they drain.
+     */
+    public Builder retainedEmptyChunks(int retainedEmptyChunks) {
+      this.retainedEmptyChunks = retainedEmptyChunks;
+      return this;
+    }
+
+    /**
+     * How long a retained empty chunk may go unused before it is freed too.
+     */
+    public Builder chunkIdleMillis(long chunkIdleMillis) {
+      this.chunkIdleMillis = chunkIdleMillis;
+      return this;
+    }
+
+    /**
+     * Chunks per region the huge allocator maps at a time and carves huge buffers out of; a
+     * buffer larger than that gets a region of its own size.
+     */
+    public Builder hugeRegionChunks(int hugeRegionChunks) {
+      this.hugeRegionChunks = hugeRegionChunks;
+      return this;
+    }
+
+    /**
+     * How many chunks' worth of emptied huge regions each arena may keep; past that an emptied
+     * region is freed at once, within it once it has been idle for {@code chunkIdleMillis}.
+     */
+    public Builder hugeRetainedChunks(int hugeRetainedChunks) {
+      this.hugeRetainedChunks = hugeRetainedChunks;
+      return this;
+    }
+
+    public Builder defaultMemoryType(MemoryType defaultMemoryType) {
+      this.defaultMemoryType = defaultMemoryType;
+      return this;
+    }
+
+    public Builder mappedDirectory(File mappedDirectory) {
+      this.mappedDirectory = mappedDirectory;
+      return this;
+    }
+
+    public Builder arenaSelection(ArenaSelection arenaSelection) {
+      this.arenaSelection = arenaSelection;
+      return this;
+    }
+
+    /**
+     * How often a background thread gives idle memory back, see {@link
+     * MemoryAllocator#stopMaintenance()}; 0, the default, runs no such thread.
+     */
+    public Builder maintenanceIntervalMillis(long maintenanceIntervalMillis) {
+      this.maintenanceIntervalMillis = maintenanceIntervalMillis;
+      return this;
+    }
+
+    /**
+     * Direct memory in use, as the JVM's {@code direct} buffer pool reports it, above which the
+     * maintenance thread runs ten times as often and frees empty chunks without waiting for them
+     * to go idle.
+     */
+    public Builder lowWatermark(long lowWatermark) {
+      this.lowWatermark = lowWatermark;
+      return this;
+    }
+
+    /**
+     * Direct memory in use above which the maintenance thread also flushes every thread cache not
+     * used since its previous round, without waiting out the thread cache idle time.
+     */
+    public Builder highWatermark(long highWatermark) {
+      this.highWatermark = highWatermark;
+      return this;
+    }
+
+    /**
+     * Checks what the arenas cannot check on their own; the size hierarchy is checked when the
+     * arenas are created.
+     */
+    public MemoryAllocatorConfig build() {
+      if (arenaCount < 1) {
+        throw new IllegalArgumentException("arena count require > 0");
+      }
+      if (chunkSize > MAX_CHUNK_SIZE) {
+        throw new IllegalArgumentException("chunk size require <= " + MAX_CHUNK_SIZE);
+      }
+      if (tinyCacheCount < 1 || quantumCacheCount < 1 || subPageCacheCount < 1
+          || largeCacheCount < 1) {
+        throw new IllegalArgumentException("cache count require > 0");
+      }
+      if (maxCachedCapacity < 1 || maxCachedCapacity > chunkSize >> 1) {
+        throw new IllegalArgumentException("max cached capacity require range(1, chunkSize / 2)");
+      }
+      if (hugeRegionChunks < 1 || (long) hugeRegionChunks * chunkSize > MAX_CHUNK_SIZE << 3) {
+        throw new IllegalArgumentException("huge region require range(1, "
+            + (MAX_CHUNK_SIZE << 3) + " / chunkSize) chunks");
+      }
+      if (hugeRetainedChunks < 0) {
+        throw new IllegalArgumentException("huge retained chunks require >= 0");
+      }
+      if (threadCacheIdleMillis < 0) {
+        throw new IllegalArgumentException("thread cache idle time require >= 0");
+      }
+      if (defaultMemoryType == null) {
+        throw new IllegalArgumentException("memory type require not null");
+      }
+      if (defaultMemoryType == MemoryType.MAPPED && mappedDirectory == null) {
+        throw new IllegalArgumentException("mapped memory require a mapped directory");
+      }
+      if (arenaSelection == null) {
+        throw new IllegalArgumentException("arena selection require not null");
+      }
+      if (maintenanceIntervalMillis < 0) {
+        throw new IllegalArgumentException("maintenance interval require >= 0");
+      }
+      if (lowWatermark < 0 || highWatermark < lowWatermark) {
+        throw new IllegalArgumentException("watermarks require 0 <= low <= high");
+      }
+      return new MemoryAllocatorConfig(this);
+    }
+  }
+}
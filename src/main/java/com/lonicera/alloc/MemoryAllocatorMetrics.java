@@ -0,0 +1,122 @@
+package com.lonicera.alloc;
+
+/**
+ * Sums the metrics of every arena of a {@link MemoryAllocator} at read time.
+ */
+class MemoryAllocatorMetrics implements MemoryAllocatorMetricsMXBean {
+
+  private final MemoryAllocator allocator;
+
+  MemoryAllocatorMetrics(MemoryAllocator allocator) {
+    this.allocator = allocator;
+  }
+
+  private ArenaMetrics[] arenaMetrics() {
+    return allocator.arenaMetrics();
+  }
+
+  @Override
+  public int getArenaCount() {
+    return allocator.arenaCount();
+  }
+
+  @Override
+  public int getThreadCaches() {
+    return allocator.threadCacheCount();
+  }
+
+  @Override
+  public int getChunkSize() {
+    return allocator.chunkSize();
+  }
+
+  @Override
+  public long getAllocations() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      for (SizeClass sizeClass : SizeClass.values()) {
+        sum += metrics.allocations(sizeClass);
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public long getFrees() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      for (SizeClass sizeClass : SizeClass.values()) {
+        sum += metrics.frees(sizeClass);
+      }
+    }
+    return sum;
+  }
+
+  @Override
+  public long getHugeAllocations() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      sum += metrics.getHugeAllocations();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getCacheHits() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      sum += metrics.getCacheHits();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getCacheMisses() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      sum += metrics.getCacheMisses();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getChunksCreated() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      sum += metrics.getChunksCreated();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getChunksDestroyed() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      sum += metrics.getChunksDestroyed();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getUsedBytes() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      sum += metrics.getUsedBytes();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getReservedBytes() {
+    long sum = 0;
+    for (ArenaMetrics metrics : arenaMetrics()) {
+      sum += metrics.getReservedBytes();
+    }
+    return sum;
+  }
+
+  @Override
+  public long getLeaksDetected() {
+    return allocator.leaksDetected();
+  }
+}
@@ -0,0 +1,40 @@
+package com.lonicera.alloc;
+
+/**
+ * Totals over all arenas of a {@link MemoryAllocator}.
+ */
+public interface MemoryAllocatorMetricsMXBean {
+
+  /**
+   * Arenas per memory type; direct, heap and mapped memory each have this many.
+   */
+  int getArenaCount();
+
+  int getThreadCaches();
+
+  int getChunkSize();
+
+  long getAllocations();
+
+  long getFrees();
+
+  long getHugeAllocations();
+
+  long getCacheHits();
+
+  long getCacheMisses();
+
+  long getChunksCreated();
+
+  long getChunksDestroyed();
+
+  long getUsedBytes();
+
+  long getReservedBytes();
+
+  /**
+   * Tracked buffers found garbage collected without being released, see
+   * {@link MemoryAllocator#leakDetection(LeakDetectionLevel, int)}.
+   */
+  long getLeaksDetected();
+}
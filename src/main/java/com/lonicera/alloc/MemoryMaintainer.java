@@ -0,0 +1,98 @@
+package com.lonicera.alloc;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The optional background thread of a {@link MemoryAllocator} that gives idle memory back while
+ * allocating threads only ever pay for what they allocate. Each round it frees the caches of
+ * terminated threads, has every live thread cache trimmed by its thread and flushes those whose
+ * threads have gone idle, reclaims leaked buffers, applies deferred frees and destroys the empty
+ * chunks that have gone idle.
+ *
+ * Once direct memory use, as the {@code direct} {@link BufferPoolMXBean} reports it, crosses the
+ * low watermark the rounds come ten times as often and every retained empty chunk and empty huge
+ * region is freed; past the high watermark every thread cache not used since the last round is
+ * flushed as well. A round that fails is logged and the next one runs as usual. The thread only
+ * holds the allocator weakly, so it ends once the allocator is unreachable.
+ */
+final class MemoryMaintainer implements Runnable {
+
+  private static final int PRESSURE_SPEEDUP = 10;
+
+  private static final AtomicInteger THREAD_IDS = new AtomicInteger();
+
+  private static final Logger LOGGER = Logger.getLogger(MemoryMaintainer.class.getName());
+
+  private final WeakReference<MemoryAllocator> allocator;
+  private final long intervalMillis;
+  private final long lowWatermark;
+  private final long highWatermark;
+  private final BufferPoolMXBean directPool;
+  private final Thread thread;
+  private volatile boolean stopped;
+
+  MemoryMaintainer(MemoryAllocator allocator, long intervalMillis, long lowWatermark,
+      long highWatermark) {
+    this.allocator = new WeakReference<>(allocator);
+    this.intervalMillis = intervalMillis;
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+    this.directPool = directPool();
+    this.thread = new Thread(this, "alloc-maintenance-" + THREAD_IDS.incrementAndGet());
+    thread.setDaemon(true);
+  }
+
+  private static BufferPoolMXBean directPool() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if ("direct".equals(pool.getName())) {
+        return pool;
+      }
+    }
+    return null;
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  void stop() {
+    stopped = true;
+    thread.interrupt();
+  }
+
+  /**
+   * @return the bytes of direct memory in use, or -1 if the JVM does not say
+   */
+  long directMemoryUsed() {
+    return directPool == null ? -1 : directPool.getMemoryUsed();
+  }
+
+  @Override
+  public void run() {
+    long pauseMillis = intervalMillis;
+    while (!stopped) {
+      try {
+        Thread.sleep(pauseMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      MemoryAllocator allocator = this.allocator.get();
+      if (allocator == null) {
+        return;
+      }
+      long used = directMemoryUsed();
+      boolean pressure = used >= lowWatermark;
+      try {
+        allocator.maintain(pressure, used >= highWatermark);
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "memory maintenance round failed", e);
+      }
+      pauseMillis = pressure ? Math.max(1, intervalMillis / PRESSURE_SPEEDUP) : intervalMillis;
+    }
+  }
+}
@@ -0,0 +1,14 @@
+package com.lonicera.alloc;
+
+/**
+ * Where the chunks of an arena live. Heap chunks are plain {@code byte[]} arrays, so their buffers
+ * expose {@link ByteBuf#array()} and can be handed to array-based codecs without a copy; direct
+ * chunks stay off the Java heap and can be passed to channels without one. Mapped chunks are
+ * direct buffers over files in the directory given to {@link MemoryAllocator}, for pools larger
+ * than {@code -XX:MaxDirectMemorySize} or than what should stay resident.
+ */
+public enum MemoryType {
+  DIRECT,
+  HEAP,
+  MAPPED
+}
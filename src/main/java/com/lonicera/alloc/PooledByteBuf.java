@@ -1,84 +1,175 @@
 package com.lonicera.alloc;
 
-import java.nio.ByteBuffer;
+class PooledByteBuf extends AbstractByteBuf implements AllocTarget {
 
-class PooledByteBuf implements ByteBuf {
-
-  private Chunk chunk;
-  private ByteBuffer memory;
-  private int offset;
-  private int capacity;
-  private int readerIndex;
-  private int writerIndex;
+  private final ByteBufRecycler.Stack stack;
+  // link in the stack's list of wrappers returned by other threads
+  PooledByteBuf recycleNext;
+  // link in the arena's list of frees deferred by other threads
+  PooledByteBuf deferredNext;
+  private Arena arena;
+  private PooledChunk chunk;
   private long handle;
-  private ByteBuffer bufMemory;
-  private ArenaAllocCache arenaCache;
-  private boolean released;
+  // the extent the buffer moved to once it outgrew half a chunk, chunk is null meanwhile
+  private UnpooledChunk huge;
+  private int alignment;
 
-  public PooledByteBuf() {
+  PooledByteBuf(ByteBufRecycler.Stack stack) {
+    this.stack = stack;
+  }
 
+  ByteBufRecycler.Stack stack() {
+    return stack;
   }
 
-  public void initByteBuf(Chunk chunk, int offset, int capacity, long handle,
-      ArenaAllocCache arenaCache) {
-    this.chunk = chunk;
-    this.memory = chunk.memory();
-    this.offset = offset;
-    this.capacity = capacity;
-    this.readerIndex = offset;
-    this.writerIndex = offset;
-    this.handle = handle;
-    memory.limit(offset + capacity);
-    memory.position(offset);
-    bufMemory = memory.duplicate();
-    this.arenaCache = arenaCache;
-    this.released = false;
+  PooledChunk chunk() {
+    return chunk;
   }
 
-  @Override
-  public byte readByte() {
-    return 0;
+  long handle() {
+    return handle;
   }
 
-  @Override
-  public void writeByte(byte b) {
+  int alignment() {
+    return alignment;
+  }
 
+  void alignment(int alignment) {
+    this.alignment = alignment;
   }
 
   @Override
-  public int readBytes(byte[] bytes) {
-    return 0;
+  public void accept(PooledChunk chunk, long handle, int capacity) {
+    initByteBuf(chunk, chunk.offset(handle), capacity, handle);
   }
 
+  public void initByteBuf(PooledChunk chunk, int offset, int capacity, long handle) {
+    this.arena = chunk.arena();
+    this.chunk = chunk;
+    this.handle = handle;
+    initMemory(chunk.memory(), offset, capacity);
+    resetRefCnt();
+  }
+
+  /**
+   * The capacity the allocator can hand out at all: past half a chunk the buffer moves to a huge
+   * extent.
+   */
   @Override
-  public int writeBytes(byte[] bytes) {
-    return 0;
+  public int maxCapacity() {
+    return arena.maxCapacity();
   }
 
+  /**
+   * Resizes in place if the arena or the huge extent can; otherwise moves to new memory, back into
+   * a run once it fits one again.
+   */
   @Override
-  public void release() {
-    synchronized (this) {
-      if (!released) {
-        if (!arenaCache.cache(this, capacity)) {
-          chunk.release(handle);
-          released = true;
-        }
+  public ByteBuf capacity(int newCapacity) {
+    checkNewCapacity(newCapacity);
+    if (huge != null) {
+      if (newCapacity > arena.maxPooledCapacity()
+          && (newCapacity <= huge.length() || huge.allocator().grow(huge, newCapacity))) {
+        moveMemory(memory(), offset(), newCapacity);
+      } else {
+        move(newCapacity);
       }
+    } else if (newCapacity > arena.maxPooledCapacity() || !arena.resize(this, newCapacity)) {
+      move(newCapacity);
+    }
+    LeakDetector.Tracker leak = leak();
+    if (leak != null) {
+      leak.record("capacity(" + newCapacity + ")");
+      leak.moved(memoryChunk(), handle, capacity());
     }
+    return this;
   }
 
-  public void cycle() {
-    readerIndex = 0;
-    writerIndex = 0;
+  /**
+   * Takes over the memory of an allocation of the buffer's own alignment, made as the calling
+   * thread would allocate but neither profiled nor tracked, and frees the old memory: a run goes
+   * through a spare wrapper so the normal free path applies, an extent straight to its allocator.
+   */
+  private void move(int newCapacity) {
+    AbstractByteBuf moved = (AbstractByteBuf) arena.parent()
+        .allocInternal(newCapacity, alignment, arena.memoryType());
+    PooledChunk oldChunk = chunk;
+    long oldHandle = handle;
+    UnpooledChunk oldHuge = huge;
+    int oldOffset = offset();
+    int oldCapacity = capacity();
+    moveMemory(moved.memory(), moved.offset(), moved.capacity());
+    PooledByteBuf spare = null;
+    if (moved instanceof PooledByteBuf) {
+      spare = (PooledByteBuf) moved;
+      arena = spare.arena;
+      chunk = spare.chunk;
+      handle = spare.handle;
+      huge = null;
+    } else {
+      chunk = null;
+      handle = 0;
+      huge = ((UnpooledByteBuf) moved).chunk();
+    }
+    if (oldHuge != null) {
+      oldHuge.release(0);
+      if (spare != null) {
+        spare.clearMemory();
+        spare.recycle();
+      }
+      return;
+    }
+    if (spare == null) {
+      spare = ByteBufRecycler.get();
+    }
+    spare.initByteBuf(oldChunk, oldOffset, oldCapacity, oldHandle);
+    spare.release();
+  }
+
+  private Chunk memoryChunk() {
+    return huge != null ? huge : chunk;
+  }
+
+  /**
+   * Whether the buffer moved out of its runs into a huge extent; such a buffer is freed to the
+   * extent's allocator rather than to an arena.
+   */
+  boolean isHuge() {
+    return huge != null;
   }
 
   @Override
-  public void resetReaderIndex() {
-    readerIndex = offset;
+  void leak(LeakDetector.Tracker tracker) {
+    super.leak(tracker);
+    tracker.moved(memoryChunk(), handle, capacity());
   }
 
   @Override
-  public void resetWriterIndex() {
-    writerIndex = offset;
+  void deallocate() {
+    clearMemory();
+    if (huge != null) {
+      freeHuge();
+      return;
+    }
+    chunk.arena().free(this);
+  }
+
+  /**
+   * For a released buffer that {@link #isHuge()}.
+   */
+  void freeHuge() {
+    UnpooledChunk huge = this.huge;
+    this.huge = null;
+    huge.release(0);
+    recycle();
+  }
+
+  /**
+   * Called by the arena once the memory is back in the pool.
+   */
+  void recycle() {
+    arena = null;
+    chunk = null;
+    ByteBufRecycler.recycle(this);
   }
 }
@@ -3,49 +3,70 @@ package com.lonicera.alloc;
 import java.nio.ByteBuffer;
 import java.util.Objects;
 
+/**
+ * A chunk split into pages of {@code runSize}, managed by a buddy tree. A run is any whole number
+ * of pages: it takes the smallest buddy block that fits and hands the pages past its end back to
+ * the tree, so a five page run costs five pages, not eight. The memory of a direct chunk starts on
+ * a page boundary of its native address, so every run is page aligned and every slot of a small
+ * run is aligned to the largest power of two dividing its size class.
+ *
+ * A handle is the first page of a large run, or, with {@link #SMALL_HANDLE} set, the first page of
+ * a small run in the upper half and the slot within it in the lower half.
+ */
 class PooledChunk implements Chunk {
 
+  static final long SMALL_HANDLE = 1L << 62;
+
   private final int totalSize;
   private Arena arena;
   private int allocatedSize;
   private int runSize;
   private byte[] binaryTree;
   private byte[] runCaps;
-  private int[] runOffsets;
+  private int[] runPages;
   private SmallAllocNode[] smallAllocNodes;
   private final int depth;
   private ChunkList chunkList;
+  // links within chunkList, maintained by ChunkList
+  PooledChunk prev;
+  PooledChunk next;
+  // what the chunk source returned; memory is the page-aligned part of it
+  private ByteBuffer allocatedMemory;
   private ByteBuffer memory;
-  private int log2Chunk;
   private int log2Run;
   private int runCount;
-  private ArenaAllocCache allocCache;
+  private boolean idle;
+  private long idleSince;
+  // set while a batch of releases is applied, see beginRelease
+  private boolean releasing;
 
-  public PooledChunk(Arena arena, int chunkSize, int runSize, ChunkList chunkList,
-      ArenaAllocCache allocCache) {
+  public PooledChunk(Arena arena, int chunkSize, int runSize, ChunkList chunkList) {
     this.arena = arena;
     this.chunkList = chunkList;
     this.totalSize = chunkSize;
     this.runSize = runSize;
     this.allocatedSize = 0;
     runCount = chunkSize / runSize;
-    smallAllocNodes = new SmallAllocNode[runCount << 1];
+    smallAllocNodes = new SmallAllocNode[runCount];
+    runPages = new int[runCount];
     depth = log2(runCount) + 1;
-    log2Chunk = log2(chunkSize);
     log2Run = log2(runSize);
     runCaps = new byte[runCount << 1];
-    runOffsets = new int[runCount << 1];
-    binaryTree = binaryTree(runCount, depth, log2Run, runCaps, runOffsets);
-    memory = ByteBuffer.allocateDirect(chunkSize);
-    this.allocCache = allocCache;
+    binaryTree = binaryTree(runCount, depth, log2Run, runCaps);
+    int slack = arena.memoryType() == MemoryType.HEAP ? 0 : runSize;
+    allocatedMemory = arena.chunkSource().allocate(chunkSize + slack);
+    memory = DirectBufferAddress.alignedSlice(allocatedMemory, runSize, chunkSize);
+  }
+
+  Arena arena() {
+    return arena;
   }
 
   private int log2(int number) {
     return Integer.SIZE - Integer.numberOfLeadingZeros(number) - 1;
   }
 
-  private byte[] binaryTree(int runCount, int depth, int log2Run, byte[] runCaps,
-      int[] runOffsets) {
+  private byte[] binaryTree(int runCount, int depth, int log2Run, byte[] runCaps) {
     byte[] bytes = new byte[runCount << 1];
     for (int iDepth = 0; iDepth < depth; iDepth++) {
       int childStart = 1 << iDepth;
@@ -53,8 +74,6 @@ class PooledChunk implements Chunk {
       for (int index = childStart; index < childEnd; index++) {
         bytes[index] = (byte) (depth - 1 - iDepth + log2Run);//代表节点容量
         runCaps[index] = bytes[index];
-        int offset = ((index << (depth - 1 - iDepth)) - runCount) * runSize;
-        runOffsets[index] = offset;
       }
     }
     return bytes;
@@ -70,100 +89,223 @@ class PooledChunk implements Chunk {
     return (int) Math.ceil(((double) (allocatedSize * 100)) / totalSize);
   }
 
-  public boolean alloc(PooledByteBuf byteBuf, int capacity) {
-    if (capacity < runSize) {
-      return allocSmall(byteBuf, capacity);
+  int allocatedSize() {
+    return allocatedSize;
+  }
+
+  static long smallHandle(int page, int bitIndex) {
+    return SMALL_HANDLE | (long) page << Integer.SIZE | bitIndex;
+  }
+
+  static boolean isSmall(long handle) {
+    return (handle & SMALL_HANDLE) != 0;
+  }
+
+  private static int page(long handle) {
+    return (int) (handle >>> Integer.SIZE) & ~(int) (SMALL_HANDLE >>> Integer.SIZE);
+  }
+
+  public boolean alloc(AllocTarget target, int capacity) {
+    if (arena.isSmall(capacity)) {
+      return allocSmall(target, capacity);
     } else {
-      return allocLarge(byteBuf, capacity);
+      return allocLarge(target, capacity);
     }
   }
 
-  private boolean allocSmall(PooledByteBuf byteBuf, int capacity) {
-    int runId = allocRun(runSize);
-    if (runId < 0) {
-      return false;
-    }
+  private boolean allocSmall(AllocTarget target, int capacity) {
+    int sizeIndex = arena.sizeIndex(capacity);
     SmallAllocNode head = arena.smallAllocHead(capacity);
-    SmallAllocNode newAllocNode = new SmallAllocNode(
-        head,
-        this,
-        runId,
-        runSize,
-        runId,
-        allocCache,
-        runOffsets[runId],
-        capacity
-    );
-    smallAllocNodes[runId] = newAllocNode;
-    SmallAllocNode next = head.next();
-    if (next != null) {
-      next.pre(newAllocNode);
-    }
-    newAllocNode.next(next);
-    head.next(newAllocNode);
-    if(head.pre() == null){
-      head.pre(newAllocNode);
-    }
-    newAllocNode.pre(head);
-
-    boolean success = newAllocNode.alloc(byteBuf, capacity);
-
-    return success;
-  }
-
-  private boolean allocLarge(PooledByteBuf byteBuf, int capacity) {
-    int runId = allocRun(capacity);
-    if (runId < 0) {
+    synchronized (head) {
+      int pages = arena.smallRunPages(sizeIndex);
+      int page = allocRun(pages);
+      if (page < 0) {
+        return false;
+      }
+      SmallAllocNode newAllocNode = new SmallAllocNode(
+          head,
+          this,
+          page,
+          pages << log2Run,
+          page,
+          page << log2Run,
+          capacity
+      );
+      smallAllocNodes[page] = newAllocNode;
+
+      return newAllocNode.alloc(target);
+    }
+  }
+
+  private boolean allocLarge(AllocTarget target, int capacity) {
+    int page = allocRun(capacity >> log2Run);
+    if (page < 0) {
       return false;
     }
-    int offset = runOffsets[runId];
-    long handle = (long) runId;
-    byteBuf.initByteBuf(this, offset, capacity, handle, allocCache);
+    target.accept(this, page, capacity);
     return true;
   }
 
-  private int allocRun(int capacity) {
-    int log2Cap = log2(capacity);
-    byte reqCap = (byte) (log2Cap);
-    int reqDept = log2Chunk - log2Cap;
+  int offset(long handle) {
+    if (!isSmall(handle)) {
+      return (int) handle << log2Run;
+    }
+    return smallAllocNodes[page(handle)].offset((int) handle);
+  }
 
+  /**
+   * {@code binaryTree[id]} is the log2 size of the largest free block under node {@code id}, 0 if
+   * none, and {@code runCaps[id]} the log2 size of the node itself, i.e. its depth. A subtree that
+   * cannot hold the block is never entered, so the search goes straight down one path. Of the
+   * block found, only the pages of the run are marked allocated, as the aligned blocks that make up
+   * its binary decomposition; the rest stays free.
+   *
+   * @return the first page of the run, or -1 if no block is large enough
+   */
+  private int allocRun(int pages) {
+    int log2Block = pages == 1 ? 0 : Integer.SIZE - Integer.numberOfLeadingZeros(pages - 1);
+    byte reqCap = (byte) (log2Run + log2Block);
     if (binaryTree[1] < reqCap) {
       return -1;
     }
+    int id = 1;
+    while (runCaps[id] > reqCap) {
+      id <<= 1;
+      if (binaryTree[id] < reqCap) {
+        id ^= 1;
+      }
+    }
+    int firstPage = (id << log2Block) - runCount;
+    markRun(firstPage, pages, true);
+    runPages[firstPage] = pages;
+    allocatedSize += pages << log2Run;
+    if (idle) {
+      idle = false;
+      arena.chunkReused(this);
+    }
+    moveUpIfNecessary();
+    return firstPage;
+  }
 
-    int i = 2;
-    int nodeDept = 1;
-    int scanEnd = 4;
-    while (i < scanEnd) {
-      byte nodeCap = binaryTree[i];
-      if (nodeCap == reqCap && nodeDept == reqDept) {
-        int runId = i;
-        binaryTree[i] = 0;
-        int parent = i >> 1;
-        int oneChild = i;
-        int anotherChild = i ^ 1;
-        while (parent > 0) {
-          byte oneCap = binaryTree[oneChild];
-          byte anotherCap = binaryTree[anotherChild];
-          binaryTree[parent] = oneCap > anotherCap ? oneCap : anotherCap;
-          oneChild = parent;
-          anotherChild = oneChild ^ 1;
-          parent = parent >> 1;
-        }
-        allocatedSize += capacity;
-        moveUpIfNecessary();
-        return runId;
+  /**
+   * Grows the large run at {@code handle} over the free pages right after it, or gives its tail
+   * back to the tree.
+   *
+   * @return false if a page the run would need is taken or past the end of the chunk
+   */
+  boolean resizeRun(long handle, int newPages) {
+    int firstPage = (int) handle;
+    int pages = runPages[firstPage];
+    if (newPages > pages && (firstPage + newPages > runCount
+        || !isFree(binaryTree, firstPage + pages, newPages - pages))) {
+      return false;
+    }
+    markRun(firstPage, pages, false);
+    markRun(firstPage, newPages, true);
+    runPages[firstPage] = newPages;
+    allocatedSize += (newPages - pages) << log2Run;
+    if (newPages > pages) {
+      moveUpIfNecessary();
+    } else {
+      moveDownIfNecessary();
+    }
+    return true;
+  }
+
+  /**
+   * Marks {@code pages} pages from {@code firstPage} as the largest aligned blocks that tile them,
+   * front to back. A run allocated from a block of its own rounded-up size tiles as the binary
+   * decomposition of its page count; a resized run tiles however its new range does, and is
+   * always unmarked the same way it was marked.
+   */
+  private void markRun(int firstPage, int pages, boolean allocated) {
+    int page = firstPage;
+    int end = firstPage + pages;
+    while (page < end) {
+      int log2 = Math.min(Integer.numberOfTrailingZeros(page),
+          Integer.SIZE - 1 - Integer.numberOfLeadingZeros(end - page));
+      int blockId = (runCount + page) >> log2;
+      if (allocated) {
+        binaryTree[blockId] = 0;
+        updateParentsAlloc(blockId);
       } else {
-        if (nodeDept < reqDept && nodeCap >= reqCap) { // walk down
-          i = i << 1;
-          nodeDept++;
-          scanEnd = i + 2;
-        } else {
-          i++; //walk ahead
+        binaryTree[blockId] = runCaps[blockId];
+        updateParentsFree(blockId);
+      }
+      page += 1 << log2;
+    }
+  }
+
+  /**
+   * A block is free if it shows its full size and no ancestor is allocated as a whole, which
+   * leaves the values below it untouched.
+   */
+  private boolean isFree(byte[] tree, int firstPage, int pages) {
+    int page = firstPage;
+    int end = firstPage + pages;
+    while (page < end) {
+      int log2 = Math.min(Integer.numberOfTrailingZeros(page),
+          Integer.SIZE - 1 - Integer.numberOfLeadingZeros(end - page));
+      int blockId = (runCount + page) >> log2;
+      if (tree[blockId] != runCaps[blockId]) {
+        return false;
+      }
+      for (int id = blockId >>> 1; id > 0; id >>>= 1) {
+        if (tree[id] == 0) {
+          return false;
         }
       }
+      page += 1 << log2;
+    }
+    return true;
+  }
+
+  // under the arena lock
+  byte[] copyTree() {
+    return binaryTree.clone();
+  }
+
+  /**
+   * Works on a copy of the buddy tree taken under the arena lock, so the scan over every page runs
+   * outside of it.
+   */
+  FragmentationSnapshot.ChunkFragmentation fragmentation(byte[] tree, int allocatedSize) {
+    long[] freeRunHistogram = new long[depth];
+    int span = 0;
+    for (int page = 0; page <= runCount; page++) {
+      if (page < runCount && isFree(tree, page, 1)) {
+        span++;
+      } else if (span > 0) {
+        freeRunHistogram[Integer.SIZE - 1 - Integer.numberOfLeadingZeros(span)]++;
+        span = 0;
+      }
+    }
+    int largestFreeRun = tree[1] == 0 ? 0 : 1 << tree[1];
+    return new FragmentationSnapshot.ChunkFragmentation(totalSize, runSize, allocatedSize,
+        largestFreeRun, freeRunHistogram);
+  }
+
+  private void updateParentsAlloc(int id) {
+    while (id > 1) {
+      int parentId = id >>> 1;
+      binaryTree[parentId] = max(binaryTree[id], binaryTree[id ^ 1]);
+      id = parentId;
+    }
+  }
+
+  private void updateParentsFree(int id) {
+    while (id > 1) {
+      int parentId = id >>> 1;
+      byte cap = binaryTree[id];
+      byte siblingCap = binaryTree[id ^ 1];
+      if (cap == runCaps[id] && siblingCap == runCaps[id]) {
+        // both halves free again: the buddies merge
+        binaryTree[parentId] = runCaps[parentId];
+      } else {
+        binaryTree[parentId] = max(cap, siblingCap);
+      }
+      id = parentId;
     }
-    return -1;
   }
 
   private void moveUpIfNecessary() {
@@ -176,32 +318,71 @@ class PooledChunk implements Chunk {
 
   @Override
   public void release(long handle) {
-    if (handle < Integer.MAX_VALUE) {
-      releaseRun(handle);
+    if (!isSmall(handle)) {
+      releaseRun((int) handle);
     } else {
-      int smallAllocIndex = (int) (handle >> Integer.SIZE);
-      int bitIndex = (int) handle;
-      smallAllocNodes[smallAllocIndex].free(bitIndex);
-    }
-  }
-
-  public void releaseRun(long handle) {
-    int runId = (int) handle;
-    byte runCap = runCaps[runId];
-    binaryTree[runId] = runCap;
-    int parentIndex = runId >> 1;
-    int anotherRunId = runId ^ 1;
-    byte oneCap = runCap;
-    byte anotherCap = binaryTree[anotherRunId];
-    while (parentIndex > 0) {
-      byte parentCap = oneCap == anotherCap ? (byte) (oneCap + 1) : max(runCap, anotherCap);
-      binaryTree[parentIndex] = parentCap;
-      oneCap = parentCap;
-      anotherCap = binaryTree[parentIndex ^ 1];
-      parentIndex = parentIndex >> 1;
-    }
-    allocatedSize -= (1 << runCap);
+      SmallAllocNode smallAllocNode = smallAllocNodes[page(handle)];
+      synchronized (smallAllocNode.head()) {
+        smallAllocNode.free((int) handle);
+      }
+    }
+  }
+
+  public void releaseRun(int firstPage) {
+    smallAllocNodes[firstPage] = null;
+    int pages = runPages[firstPage];
+    markRun(firstPage, pages, false);
+    allocatedSize -= pages << log2Run;
+    if (releasing) {
+      return;
+    }
     moveDownIfNecessary();
+    if (allocatedSize == 0) {
+      arena.chunkEmptied(this);
+    }
+  }
+
+  /**
+   * Starts a batch of releases: until {@link #endRelease()} the chunk keeps its place in its list
+   * however far its usage drops, and then moves once.
+   */
+  void beginRelease() {
+    releasing = true;
+  }
+
+  void endRelease() {
+    if (!releasing) {
+      return;
+    }
+    releasing = false;
+    moveDownIfNecessary();
+    if (allocatedSize == 0) {
+      arena.chunkEmptied(this);
+    }
+  }
+
+  boolean idle() {
+    return idle;
+  }
+
+  long idleSince() {
+    return idleSince;
+  }
+
+  void idle(long idleSince) {
+    this.idle = true;
+    this.idleSince = idleSince;
+  }
+
+  /**
+   * Unlinks the chunk from its list and, for a direct chunk, frees its memory right away instead of
+   * leaving it to the garbage collector. The chunk must not have anything allocated.
+   */
+  void destroy() {
+    chunkList.remove(this);
+    DirectBufferCleaner.free(allocatedMemory);
+    allocatedMemory = null;
+    memory = null;
   }
 
   private byte max(byte a, byte b) {
@@ -217,6 +398,10 @@ class PooledChunk implements Chunk {
     this.chunkList = chunkList;
   }
 
+  ChunkList chunkList() {
+    return chunkList;
+  }
+
   public String toString() {
     return "Chunk@" + Objects.hashCode(this) + "[" + usage() + "%]";
   }
@@ -0,0 +1,12 @@
+package com.lonicera.alloc;
+
+/**
+ * The size classes an allocation falls into, in increasing order of size.
+ */
+enum SizeClass {
+  TINY,
+  QUANTUM,
+  SUB_PAGE,
+  LARGE,
+  HUGE
+}
@@ -1,28 +1,42 @@
 package com.lonicera.alloc;
 
+/**
+ * A run split into equal slots of {@code allocSize}. Slot {@code i} is bit {@code i & 63} of
+ * {@code bitMaps[i >> 6]}, set while allocated. {@code summary} has one bit per bitmap word, set
+ * while that word still has a free slot, so finding the lowest free slot is two
+ * {@link Long#numberOfTrailingZeros} calls instead of a scan over every bit.
+ */
 public class SmallAllocNode {
 
   private SmallAllocNode head;
   private PooledChunk chunk;
   private int runId;
   private int allocIndex;
-  private ArenaAllocCache allocCache;
   private int runOffset;
   private long[] bitMaps;
+  private long[] summary;
   private int allocSize;
   private SmallAllocNode pre;
   private SmallAllocNode next;
-  private int firstFreeBit = 0;
   private final int totalCount;
   private int freeCount;
 
+  public SmallAllocNode(int allocSize) {
+    this.head = this;
+    this.allocSize = allocSize;
+    this.bitMaps = new long[0];
+    this.summary = new long[0];
+    this.totalCount = 0;
+    this.pre = this;
+    this.next = this;
+  }
+
   public SmallAllocNode(
       SmallAllocNode head,
       PooledChunk chunk,
       int runId,
       int runSize,
       int allocIndex,
-      ArenaAllocCache allocCache,
       int runOffset,
       int allocSize
   ) {
@@ -30,16 +44,25 @@ public class SmallAllocNode {
     this.chunk = chunk;
     this.runId = runId;
     this.allocIndex = allocIndex;
-    this.allocCache = allocCache;
     this.runOffset = runOffset;
     this.allocSize = allocSize;
     totalCount = runSize / allocSize;
-    int longCount = totalCount % 64 == 0 ? totalCount / 64 : totalCount / 64 + 1;
+    int longCount = (totalCount + Long.SIZE - 1) >>> 6;
     bitMaps = new long[longCount];
+    summary = new long[(longCount + Long.SIZE - 1) >>> 6];
+    for (int i = 0; i < longCount; i++) {
+      summary[i >>> 6] |= 1L << i;
+    }
+    int tailBits = totalCount & (Long.SIZE - 1);
+    if (tailBits != 0) {
+      // slots past the end of the run are never free
+      bitMaps[longCount - 1] = -1L << tailBits;
+    }
     freeCount = totalCount;
+    addToHead();
   }
 
-  public boolean alloc(PooledByteBuf byteBuf, int alignCapacity) {
+  public boolean alloc(AllocTarget target) {
     if (freeCount == 0) {
       return false;
     }
@@ -47,68 +70,54 @@ public class SmallAllocNode {
     if(freeCount == 0){
       moveToEnd();
     }
-    int offset = runOffset + firstFreeBit * allocSize;
-    long handle = ((long) allocIndex << Integer.SIZE) | firstFreeBit;
-    byteBuf.initByteBuf(chunk, offset, allocSize, handle, allocCache);
+    int bitIndex = nextFreeBit();
+    long handle = PooledChunk.smallHandle(allocIndex, bitIndex);
 
-    int bitMapIndex = firstFreeBit / Long.SIZE;
-    int bitOffset = firstFreeBit % Long.SIZE;
-    long bitmap = bitMaps[bitMapIndex];
-    long marker = (1L << (Long.SIZE - 1 - bitOffset));
-    bitmap = bitmap | marker;
+    int bitMapIndex = bitIndex >>> 6;
+    long bitmap = bitMaps[bitMapIndex] | 1L << bitIndex;
     bitMaps[bitMapIndex] = bitmap;
+    if (bitmap == -1L) {
+      summary[bitMapIndex >>> 6] &= ~(1L << bitMapIndex);
+    }
 
-    firstFreeBit = nextBit0(bitMaps, firstFreeBit + 1);
-
+    target.accept(chunk, handle, allocSize);
     return true;
   }
 
+  public int offset(int bitIndex) {
+    return runOffset + bitIndex * allocSize;
+  }
+
   private void moveToEnd() {
     if(head.pre == this){
       return;
     }
-    SmallAllocNode pre = pre();
-    SmallAllocNode next = next();
-
-    pre.next(next);
-    next.pre(pre);
-
+    removeSelf();
     SmallAllocNode tail = head.pre;
-    tail.next(this);
-    this.pre(tail);
-
+    this.pre = tail;
+    this.next = head;
+    tail.next = this;
     head.pre = this;
   }
 
-  private int nextBit0(long[] bitmaps, int bitOffset) {
-    int bitmapIndex = bitOffset / Long.SIZE;
-    int offset = bitOffset % Long.SIZE;
-    for(int i = bitmapIndex; i < bitmaps.length; i++){
-      long bitmap = bitmaps[bitmapIndex];
-      long marker = 1L << (Long.SIZE - 1 - offset);
-      while (offset < Long.SIZE){
-        if((marker | bitmap) != bitmap){
-          return bitOffset;
-        }
-        offset++;
-        bitOffset++;
-        marker = marker >> 1;
+  private int nextFreeBit() {
+    for (int i = 0; i < summary.length; i++) {
+      long words = summary[i];
+      if (words != 0) {
+        int bitMapIndex = (i << 6) | Long.numberOfTrailingZeros(words);
+        return (bitMapIndex << 6) | Long.numberOfTrailingZeros(~bitMaps[bitMapIndex]);
       }
-      offset = 0;
     }
-    return bitOffset;
+    throw new IllegalStateException("no free slot in run");
   }
 
   public void free(int freeBitIndex) {
-    if (freeBitIndex < firstFreeBit) {
-      firstFreeBit = freeBitIndex;
-    }
-    int bitMapIndex = freeBitIndex / Long.SIZE;
-    int bitOffset = freeBitIndex % Long.SIZE;
+    int bitMapIndex = freeBitIndex >>> 6;
     long bitmap = bitMaps[bitMapIndex];
-    long marker = ~(1L << (Long.SIZE - 1 - bitOffset));
-    bitmap = bitmap & marker;
-    bitMaps[bitMapIndex] = bitmap;
+    if (bitmap == -1L) {
+      summary[bitMapIndex >>> 6] |= 1L << bitMapIndex;
+    }
+    bitMaps[bitMapIndex] = bitmap & ~(1L << freeBitIndex);
     freeCount += 1;
     if (freeCount == totalCount) {
       removeSelf();
@@ -123,22 +132,32 @@ public class SmallAllocNode {
       return;
     }
     removeSelf();
+    addToHead();
+  }
+
+  private void addToHead() {
     SmallAllocNode next = head.next;
     this.next = next;
-    next.pre(this);
-
+    next.pre = this;
     head.next = this;
     this.pre = head;
   }
 
   private void removeSelf() {
     this.pre.next = next;
-    if(head.pre == this){
-      head.pre = null;
-    }
-    if(next != null){
-      this.next.pre = this.pre;
-    }
+    this.next.pre = pre;
+  }
+
+  int totalCount() {
+    return totalCount;
+  }
+
+  int freeCount() {
+    return freeCount;
+  }
+
+  public SmallAllocNode head() {
+    return head;
   }
 
   public SmallAllocNode pre() {
@@ -0,0 +1,70 @@
+package com.lonicera.alloc;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Thread caches have no hook on thread exit, so one daemon thread shared by every allocator with
+ * thread caches looks for the caches of terminated threads once a second and hands their entries
+ * back to the arenas. It also flushes the caches of live threads that have gone idle, which would
+ * otherwise hold their entries until the thread allocates again. Allocators are held weakly; the
+ * thread ends once none is left and starts again with the next one.
+ */
+final class ThreadCacheSweeper implements Runnable {
+
+  static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+  private static final List<WeakReference<MemoryAllocator>> ALLOCATORS = new ArrayList<>();
+
+  private static Thread thread;
+
+  private ThreadCacheSweeper() {
+  }
+
+  static void register(MemoryAllocator allocator) {
+    synchronized (ALLOCATORS) {
+      ALLOCATORS.add(new WeakReference<>(allocator));
+      if (thread == null) {
+        thread = new Thread(new ThreadCacheSweeper(), "alloc-thread-cache-sweeper");
+        thread.setDaemon(true);
+        thread.start();
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    List<MemoryAllocator> allocators = new ArrayList<>();
+    for (;;) {
+      try {
+        Thread.sleep(SWEEP_INTERVAL_MILLIS);
+      } catch (InterruptedException e) {
+        synchronized (ALLOCATORS) {
+          thread = null;
+        }
+        return;
+      }
+      synchronized (ALLOCATORS) {
+        Iterator<WeakReference<MemoryAllocator>> iterator = ALLOCATORS.iterator();
+        while (iterator.hasNext()) {
+          MemoryAllocator allocator = iterator.next().get();
+          if (allocator == null) {
+            iterator.remove();
+          } else {
+            allocators.add(allocator);
+          }
+        }
+        if (allocators.isEmpty()) {
+          thread = null;
+          return;
+        }
+      }
+      for (MemoryAllocator allocator : allocators) {
+        allocator.sweepThreadCaches();
+      }
+      allocators.clear();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package com.lonicera.alloc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The per-thread hash {@code LongAdder} and {@code ConcurrentHashMap} spread their counter cells
+ * by: {@code Thread.threadLocalRandomProbe}, read and written through {@code sun.misc.Unsafe}. It
+ * lives in the {@link Thread} itself, so it costs nothing per thread and dies with the thread,
+ * which matters when threads are virtual and there are millions of them.
+ *
+ * The accessors are method handles rather than {@link Method}s, as they sit on the allocation
+ * path. If the field cannot be reached the probe is the thread's identity hash, which never moves.
+ */
+final class ThreadProbe {
+
+  private static final MethodHandle GET_INT;
+  private static final MethodHandle PUT_INT;
+  private static final long PROBE_OFFSET;
+
+  static {
+    MethodHandle getInt = null;
+    MethodHandle putInt = null;
+    long probeOffset = -1;
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      Object unsafe = theUnsafe.get(null);
+      Method objectFieldOffset = unsafeClass.getMethod("objectFieldOffset", Field.class);
+      probeOffset = (Long) objectFieldOffset.invoke(unsafe,
+          Thread.class.getDeclaredField("threadLocalRandomProbe"));
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      getInt = lookup.unreflect(unsafeClass.getMethod("getInt", Object.class, long.class))
+          .bindTo(unsafe);
+      putInt = lookup.unreflect(
+          unsafeClass.getMethod("putInt", Object.class, long.class, int.class)).bindTo(unsafe);
+    } catch (Throwable unsupported) {
+      getInt = null;
+      putInt = null;
+      probeOffset = -1;
+    }
+    GET_INT = getInt;
+    PUT_INT = putInt;
+    PROBE_OFFSET = probeOffset;
+  }
+
+  private ThreadProbe() {
+  }
+
+  /**
+   * @return the calling thread's probe, never 0
+   */
+  static int get() {
+    Thread thread = Thread.currentThread();
+    if (GET_INT == null) {
+      return System.identityHashCode(thread) | 1;
+    }
+    try {
+      int probe = (int) GET_INT.invokeExact((Object) thread, PROBE_OFFSET);
+      if (probe == 0) {
+        // seeds the probe of the current thread
+        ThreadLocalRandom.current();
+        probe = (int) GET_INT.invokeExact((Object) thread, PROBE_OFFSET);
+      }
+      return probe;
+    } catch (Throwable e) {
+      return System.identityHashCode(thread) | 1;
+    }
+  }
+
+  /**
+   * Moves the calling thread's probe on by one xorshift step, the same one the JDK uses.
+   *
+   * @return the new probe
+   */
+  static int advance(int probe) {
+    probe ^= probe << 13;
+    probe ^= probe >>> 17;
+    probe ^= probe << 5;
+    if (PUT_INT != null) {
+      try {
+        PUT_INT.invokeExact((Object) Thread.currentThread(), PROBE_OFFSET, probe);
+      } catch (Throwable e) {
+        // the probe stays where it is
+      }
+    }
+    return probe;
+  }
+}
@@ -1,62 +1,56 @@
 package com.lonicera.alloc;
 
-import java.nio.ByteBuffer;
+public class UnpooledByteBuf extends AbstractByteBuf {
+  private UnpooledChunk chunk;
 
-public class UnpooledByteBuf implements ByteBuf {
-  private Chunk chunk;
-  private ByteBuffer memory;
-  private int offset;
-  private int length;
-  private int readerIndex;
-  private int writerIndex;
-  private boolean released;
-
-  public UnpooledByteBuf(Chunk chunk){
+  public UnpooledByteBuf(UnpooledChunk chunk, int offset, int capacity){
     this.chunk = chunk;
-    this.memory = chunk.memory();
-    this.offset = 0;
-    this.length = memory.capacity();
-    this.readerIndex = offset;
-    this.writerIndex = offset;
-    this.released = false;
-  }
-
-  @Override
-  public byte readByte(){
-    return 0;
-  }
-
-  @Override
-  public void writeByte(byte b){
-
+    initMemory(chunk.memory(), offset, capacity);
   }
 
-  @Override
-  public int readBytes(byte[] bytes){
-    return 0;
+  UnpooledChunk chunk() {
+    return chunk;
   }
 
   @Override
-  public int writeBytes(byte[] bytes){
-    return 0;
+  public int maxCapacity() {
+    return chunk.allocator().maxCapacity();
   }
 
+  /**
+   * The extent is a whole number of chunks, so most growth fits in it as is; beyond that the
+   * buffer takes the free extent after it, or moves.
+   */
   @Override
-  public void release(){
-    synchronized (this){
-      if(!released){
-        released = true;
-      }
+  public ByteBuf capacity(int newCapacity) {
+    checkNewCapacity(newCapacity);
+    HugeAllocator allocator = chunk.allocator();
+    if (newCapacity <= chunk.length() || allocator.grow(chunk, newCapacity)) {
+      moveMemory(memory(), offset(), newCapacity);
+    } else {
+      UnpooledChunk moved = allocator.alloc(newCapacity);
+      moveMemory(moved.memory(), moved.offset(), newCapacity);
+      UnpooledChunk old = chunk;
+      chunk = moved;
+      allocator.free(old);
+    }
+    LeakDetector.Tracker leak = leak();
+    if (leak != null) {
+      leak.record("capacity(" + newCapacity + ")");
+      leak.moved(chunk, 0, newCapacity);
     }
+    return this;
   }
 
   @Override
-  public void resetReaderIndex() {
-    readerIndex = offset;
+  void leak(LeakDetector.Tracker tracker) {
+    super.leak(tracker);
+    tracker.moved(chunk, 0, capacity());
   }
 
   @Override
-  public void resetWriterIndex() {
-    writerIndex = offset;
+  void deallocate() {
+    clearMemory();
+    chunk.release(0);
   }
 }
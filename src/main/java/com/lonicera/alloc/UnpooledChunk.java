@@ -3,19 +3,50 @@ package com.lonicera.alloc;
 import java.nio.ByteBuffer;
 import java.util.Objects;
 
+/**
+ * A chunk-multiple extent of a {@link HugeAllocator} region.
+ */
 class UnpooledChunk implements Chunk {
-  private ByteBuffer memory;
-  public UnpooledChunk(int capacity){
-    this.memory = ByteBuffer.allocateDirect(capacity);
-  }
+  private HugeAllocator allocator;
+  private HugeAllocator.Region region;
+  private int offset;
+  private int length;
 
-  public boolean alloc(ByteBuf byteBuf, int capacity){
-    throw new UnsupportedOperationException();
+  public UnpooledChunk(HugeAllocator allocator, HugeAllocator.Region region, int offset,
+      int length) {
+    this.allocator = allocator;
+    this.region = region;
+    this.offset = offset;
+    this.length = length;
   }
 
   @Override
   public ByteBuffer memory(){
-    return memory;
+    return region.memory();
+  }
+
+  HugeAllocator allocator() {
+    return allocator;
+  }
+
+  HugeAllocator.Region region() {
+    return region;
+  }
+
+  int offset() {
+    return offset;
+  }
+
+  void offset(int offset) {
+    this.offset = offset;
+  }
+
+  int length() {
+    return length;
+  }
+
+  void length(int length) {
+    this.length = length;
   }
 
   @Override
@@ -25,7 +56,7 @@ class UnpooledChunk implements Chunk {
 
   @Override
   public void release(long handle){
-    memory = null;
+    allocator.free(this);
   }
 
   @Override
@@ -34,7 +65,7 @@ class UnpooledChunk implements Chunk {
   }
 
   @Override
-  public boolean alloc(PooledByteBuf byteBuf, int capacity) {
+  public boolean alloc(AllocTarget target, int capacity) {
     throw new UnsupportedOperationException();
   }
 
@@ -0,0 +1,63 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AllocationProfilerTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+      .arenaCount(2)
+      .build());
+
+  @Test
+  public void nothingRecordedRecommendsTheCurrentConfig() {
+    AllocationProfiler profiler = allocator.startProfiling();
+    assertSame(allocator.config(), profiler.recommend());
+    allocator.stopProfiling();
+  }
+
+  @Test
+  public void profilerRecommendsLoadableConfig() throws Exception {
+    AllocationProfiler profiler = allocator.startProfiling();
+    for (int i = 0; i < 1000; i++) {
+      allocator.alloc(64).release();
+    }
+    allocator.stopProfiling();
+    assertEquals(1000, profiler.allocations());
+    assertEquals(1000, profiler.histogram()[6]);
+
+    MemoryAllocatorConfig config = allocator.config();
+    MemoryAllocatorConfig recommended = profiler.recommend();
+    // a single thread allocated, from one of the two arenas
+    assertEquals(1, recommended.arenaCount());
+    // 64 byte requests alone would fit a far smaller chunk, but it keeps at least 64 runs
+    assertEquals(config.runSize() * 64, recommended.chunkSize());
+    assertEquals(config.runSize(), recommended.maxCachedCapacity());
+
+    File file = new File(folder.getRoot(), "alloc.properties");
+    recommended.store(file);
+    MemoryAllocatorConfig loaded = MemoryAllocatorConfig.load(file);
+    assertEquals(recommended.toProperties(), loaded.toProperties());
+    ByteBuf byteBuf = new MemoryAllocator(loaded).alloc(64);
+    assertTrue(byteBuf.release());
+  }
+
+  @Test
+  public void threadCachingTwoMemoryTypesCountsAsOneThread() {
+    AllocationProfiler profiler = allocator.startProfiling();
+    allocator.alloc(64).release();
+    allocator.alloc(64, MemoryType.HEAP).release();
+    allocator.stopProfiling();
+    assertEquals(2, allocator.threadCacheCount());
+    assertEquals(1, profiler.recommend().arenaCount());
+  }
+}
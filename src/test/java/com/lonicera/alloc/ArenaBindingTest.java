@@ -0,0 +1,190 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import org.junit.After;
+import org.junit.Test;
+
+public class ArenaBindingTest {
+
+  // above the largest cached size class, so these never leave entries in a thread cache
+  private static final int UNCACHED = 2 * ArenaAllocCache.DEFAULT_MAX_CACHED_CAPACITY;
+
+  private final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+      .arenaCount(2)
+      .build());
+
+  private final Worker[] workers = new Worker[3];
+
+  /**
+   * A thread that stays alive, and bound, between the tasks it is given.
+   */
+  private static final class Worker extends Thread {
+
+    private final SynchronousQueue<FutureTask<Void>> tasks = new SynchronousQueue<>();
+
+    Worker() {
+      setDaemon(true);
+      start();
+    }
+
+    void execute(Runnable task) throws InterruptedException, ExecutionException {
+      FutureTask<Void> future = new FutureTask<>(task, null);
+      tasks.put(future);
+      future.get();
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (;;) {
+          tasks.take().run();
+        }
+      } catch (InterruptedException e) {
+        // stopped
+      }
+    }
+
+    void terminate() throws InterruptedException {
+      interrupt();
+      join();
+    }
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    for (Worker worker : workers) {
+      if (worker != null) {
+        worker.terminate();
+      }
+    }
+  }
+
+  private Runnable alloc(final int capacity, final int times) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < times; i++) {
+          allocator.alloc(capacity).release();
+        }
+      }
+    };
+  }
+
+  private int boundThreads(int arena) {
+    return allocator.arenaMetrics()[arena].getBoundThreads();
+  }
+
+  private int usedSlots(int arena) {
+    int usedSlots = 0;
+    for (FragmentationSnapshot.SizeClassOccupancy sizeClass
+        : allocator.fragmentationSnapshot().arenas().get(arena).sizeClasses()) {
+      usedSlots += sizeClass.usedSlots();
+    }
+    return usedSlots;
+  }
+
+  @Test
+  public void threadsBindToTheArenaWithFewestBoundThreads() throws Exception {
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker();
+      workers[i].execute(alloc(UNCACHED, 1));
+    }
+    assertEquals(2, boundThreads(0));
+    assertEquals(1, boundThreads(1));
+    // the direct caches of three threads; no heap arena was touched
+    assertEquals(3, allocator.threadCacheCount());
+    assertEquals(0, allocator.arenaMetrics()[2].getBoundThreads());
+    assertEquals(0, allocator.arenaMetrics()[3].getBoundThreads());
+  }
+
+  @Test
+  public void tiesGoToTheArenaWithLessLockTraffic() throws Exception {
+    workers[0] = new Worker();
+    workers[0].execute(alloc(UNCACHED, 1));
+    workers[1] = new Worker();
+    workers[1].execute(alloc(UNCACHED, 100));
+    assertEquals(1, boundThreads(0));
+    assertEquals(1, boundThreads(1));
+    assertTrue(allocator.arenaMetrics()[1].getLockAcquired()
+        > allocator.arenaMetrics()[0].getLockAcquired());
+    workers[2] = new Worker();
+    workers[2].execute(alloc(UNCACHED, 1));
+    assertEquals(2, boundThreads(0));
+  }
+
+  @Test
+  public void deadThreadsAreUnbound() throws Exception {
+    workers[0] = new Worker();
+    workers[0].execute(alloc(64, 1));
+    assertEquals(1, boundThreads(0));
+    assertTrue(usedSlots(0) > 0);
+    workers[0].terminate();
+    workers[0] = null;
+    allocator.sweepThreadCaches();
+    assertEquals(0, boundThreads(0));
+    assertEquals(0, allocator.threadCacheCount());
+    // the magazine went back to the arena with the binding
+    assertEquals(0, usedSlots(0));
+  }
+
+  @Test
+  public void rebalanceMovesTheCacheAndFlushesItToTheOldArena() throws Exception {
+    workers[0] = new Worker();
+    // leaves a magazine of small slots in arena 0
+    workers[0].execute(alloc(64, 1));
+    workers[1] = new Worker();
+    workers[1].execute(alloc(UNCACHED, 100));
+    workers[2] = new Worker();
+    workers[2].execute(alloc(UNCACHED, 1));
+    assertEquals(2, boundThreads(0));
+    workers[1].terminate();
+    workers[1] = null;
+    allocator.sweepThreadCaches();
+    assertEquals(0, boundThreads(1));
+    assertTrue(usedSlots(0) > 0);
+
+    final ArenaAllocCache[] caches = new ArenaAllocCache[2];
+    workers[0].execute(new Runnable() {
+      @Override
+      public void run() {
+        caches[0] = allocator.threadAllocCache(MemoryType.DIRECT);
+        // what the cache does once it sees its arena contended
+        allocator.rebalance(caches[0]);
+        caches[1] = allocator.threadAllocCache(MemoryType.DIRECT);
+      }
+    });
+    assertNotSame(caches[0], caches[1]);
+    assertNotSame(caches[0].arena(), caches[1].arena());
+    assertEquals(1, boundThreads(0));
+    assertEquals(1, boundThreads(1));
+    assertEquals(0, usedSlots(0));
+  }
+
+  @Test
+  public void rebalanceKeepsTheCacheWhenMovingWouldNotEvenTheLoad() throws Exception {
+    workers[0] = new Worker();
+    workers[0].execute(alloc(64, 1));
+    workers[1] = new Worker();
+    workers[1].execute(alloc(UNCACHED, 1));
+    final ArenaAllocCache[] caches = new ArenaAllocCache[2];
+    workers[0].execute(new Runnable() {
+      @Override
+      public void run() {
+        caches[0] = allocator.threadAllocCache(MemoryType.DIRECT);
+        allocator.rebalance(caches[0]);
+        caches[1] = allocator.threadAllocCache(MemoryType.DIRECT);
+      }
+    });
+    assertSame(caches[0], caches[1]);
+    assertEquals(1, boundThreads(0));
+    assertEquals(1, boundThreads(1));
+    assertTrue(usedSlots(0) > 0);
+  }
+}
@@ -0,0 +1,56 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ArenaTest {
+
+  // above the thread cache, and three of them take two chunks
+  private static final int HALF_CHUNK = Arena.DEFAULT_CHUNK_SIZE / 2;
+
+  private static MemoryAllocator allocator(int retainedEmptyChunks, long chunkIdleMillis) {
+    return new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .retainedEmptyChunks(retainedEmptyChunks)
+        .chunkIdleMillis(chunkIdleMillis)
+        .build());
+  }
+
+  private static ArenaMetrics metrics(MemoryAllocator allocator) {
+    return allocator.arenaMetrics()[0];
+  }
+
+  private static void allocAndRelease(MemoryAllocator allocator, int count) {
+    ByteBuf[] byteBufs = new ByteBuf[count];
+    for (int i = 0; i < count; i++) {
+      byteBufs[i] = allocator.alloc(HALF_CHUNK);
+    }
+    for (ByteBuf byteBuf : byteBufs) {
+      byteBuf.release();
+    }
+  }
+
+  @Test
+  public void emptyChunksPastTheRetainedOnesAreDestroyedAtOnce() {
+    MemoryAllocator allocator = allocator(1, 60_000);
+    allocAndRelease(allocator, 3);
+    assertEquals(2, metrics(allocator).getChunksCreated());
+    assertEquals(1, metrics(allocator).getChunksDestroyed());
+    // the retained chunk is not idle long enough yet
+    allocator.trim();
+    assertEquals(1, metrics(allocator).getChunksDestroyed());
+    assertEquals(Arena.DEFAULT_CHUNK_SIZE, metrics(allocator).getReservedBytes());
+  }
+
+  @Test
+  public void retainedChunkIsDestroyedOnceIdle() throws Exception {
+    MemoryAllocator allocator = allocator(1, 20);
+    allocAndRelease(allocator, 1);
+    assertEquals(0, metrics(allocator).getChunksDestroyed());
+    Thread.sleep(50);
+    allocator.trim();
+    assertEquals(1, metrics(allocator).getChunksDestroyed());
+    assertEquals(0, metrics(allocator).getReservedBytes());
+  }
+}
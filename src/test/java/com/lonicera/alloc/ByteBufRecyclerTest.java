@@ -0,0 +1,91 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class ByteBufRecyclerTest {
+
+  /**
+   * Runs {@code body} on a fresh thread, so it starts with an empty stack of its own.
+   */
+  private static void onNewThread(final Runnable body) throws Exception {
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          body.run();
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+    if (failure.get() instanceof AssertionError) {
+      throw (AssertionError) failure.get();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+
+  private static void recycleOnOtherThread(final PooledByteBuf... byteBufs) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (PooledByteBuf byteBuf : byteBufs) {
+          ByteBufRecycler.recycle(byteBuf);
+        }
+      }
+    });
+    thread.start();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  public void wrapperRecycledByAnotherThreadReturnsToItsOwner() throws Exception {
+    onNewThread(new Runnable() {
+      @Override
+      public void run() {
+        PooledByteBuf byteBuf = ByteBufRecycler.get();
+        recycleOnOtherThread(byteBuf);
+        assertSame(byteBuf, ByteBufRecycler.get());
+      }
+    });
+  }
+
+  @Test
+  public void remoteReturnsAreBounded() throws Exception {
+    onNewThread(new Runnable() {
+      @Override
+      public void run() {
+        int count = ByteBufRecycler.MAX_CAPACITY_PER_THREAD + 10;
+        PooledByteBuf[] byteBufs = new PooledByteBuf[count];
+        for (int i = 0; i < count; i++) {
+          byteBufs[i] = ByteBufRecycler.get();
+        }
+        recycleOnOtherThread(byteBufs);
+        Set<PooledByteBuf> returned =
+            Collections.newSetFromMap(new IdentityHashMap<PooledByteBuf, Boolean>());
+        Collections.addAll(returned, byteBufs);
+        for (int i = 0; i < ByteBufRecycler.MAX_CAPACITY_PER_THREAD; i++) {
+          assertTrue(returned.remove(ByteBufRecycler.get()));
+        }
+        // the ones past the bound were left to the GC
+        assertFalse(returned.contains(ByteBufRecycler.get()));
+      }
+    });
+  }
+}
@@ -0,0 +1,272 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class ByteBufTest {
+
+  private final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+      .arenaCount(1)
+      .build());
+
+  @Test
+  public void relativeAccessorsRoundTrip() {
+    ByteBuf byteBuf = allocator.alloc(64);
+    byteBuf.writeByte((byte) 7);
+    byteBuf.writeShort((short) 0x1234);
+    byteBuf.writeShortLE((short) 0x1234);
+    byteBuf.writeInt(0xCAFEBABE);
+    byteBuf.writeIntLE(0xCAFEBABE);
+    byteBuf.writeLong(0x0102030405060708L);
+    byteBuf.writeLongLE(0x0102030405060708L);
+    byteBuf.writeFloat(1.5f);
+    byteBuf.writeDoubleLE(-2.25d);
+
+    assertEquals(7, byteBuf.readByte());
+    assertEquals(0x1234, byteBuf.readShort());
+    assertEquals(0x1234, byteBuf.readShortLE());
+    assertEquals(0xCAFEBABE, byteBuf.readInt());
+    assertEquals(0xCAFEBABE, byteBuf.readIntLE());
+    assertEquals(0x0102030405060708L, byteBuf.readLong());
+    assertEquals(0x0102030405060708L, byteBuf.readLongLE());
+    assertEquals(1.5f, byteBuf.readFloat(), 0f);
+    assertEquals(-2.25d, byteBuf.readDoubleLE(), 0d);
+    assertEquals(0, byteBuf.readableBytes());
+    byteBuf.release();
+  }
+
+  @Test
+  public void littleEndianIsByteSwapped() {
+    ByteBuf byteBuf = allocator.alloc(8);
+    byteBuf.setIntLE(0, 0x01020304);
+    assertEquals(0x04030201, byteBuf.getInt(0));
+    assertEquals(0x04, byteBuf.getByte(0));
+    byteBuf.release();
+  }
+
+  @Test
+  public void buffersOfOneChunkDoNotOverlap() {
+    ByteBuf first = allocator.alloc(16);
+    ByteBuf second = allocator.alloc(16);
+    first.setLong(8, -1L);
+    second.setLong(0, 0L);
+    assertEquals(-1L, first.getLong(8));
+    first.release();
+    second.release();
+  }
+
+  @Test
+  public void bulkBytesRoundTrip() {
+    ByteBuf byteBuf = allocator.alloc(40960);
+    byte[] src = new byte[1000];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = (byte) i;
+    }
+    assertEquals(src.length, byteBuf.writeBytes(src));
+    byte[] dst = new byte[2000];
+    assertEquals(src.length, byteBuf.readBytes(dst));
+    byte[] head = new byte[src.length];
+    System.arraycopy(dst, 0, head, 0, head.length);
+    assertArrayEquals(src, head);
+    byteBuf.release();
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void getBeyondCapacityFails() {
+    ByteBuf byteBuf = allocator.alloc(16);
+    try {
+      byteBuf.getLong(byteBuf.capacity() - 4);
+    } finally {
+      byteBuf.release();
+    }
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void readBeyondWriterIndexFails() {
+    ByteBuf byteBuf = allocator.alloc(16);
+    byteBuf.writeShort((short) 1);
+    try {
+      byteBuf.readInt();
+    } finally {
+      byteBuf.release();
+    }
+  }
+
+  @Test
+  public void heapBufferSharesItsArray() {
+    ByteBuf byteBuf = allocator.alloc(100, MemoryType.HEAP);
+    assertTrue(byteBuf.hasArray());
+    assertFalse(byteBuf.isDirect());
+    byteBuf.writeInt(0x01020304);
+    byte[] array = byteBuf.array();
+    assertEquals(1, array[byteBuf.arrayOffset()]);
+    assertEquals(4, array[byteBuf.arrayOffset() + 3]);
+    array[byteBuf.arrayOffset() + 4] = 9;
+    assertEquals(9, byteBuf.getByte(4));
+    byteBuf.release();
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void directBufferHasNoArray() {
+    ByteBuf byteBuf = allocator.alloc(100, MemoryType.DIRECT);
+    try {
+      byteBuf.array();
+    } finally {
+      byteBuf.release();
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void accessAfterReleaseFails() {
+    ByteBuf byteBuf = allocator.alloc(16);
+    byteBuf.release();
+    byteBuf.getInt(0);
+  }
+
+  @Test
+  public void recycledBufferDropsItsNioDuplicate() {
+    AbstractByteBuf byteBuf = (AbstractByteBuf) allocator.alloc(4096, MemoryType.DIRECT);
+    byteBuf.writeBytes(new byte[100]);
+    byteBuf.readBytes(new byte[100]);
+    assertNotNull(byteBuf.tmpNioBuf());
+    byteBuf.release();
+    assertNull(byteBuf.tmpNioBuf());
+    // the wrapper comes straight back from this thread's recycler
+    AbstractByteBuf reused = (AbstractByteBuf) allocator.alloc(4096, MemoryType.DIRECT);
+    assertSame(byteBuf, reused);
+    assertNull(reused.tmpNioBuf());
+    reused.release();
+  }
+
+  @Test
+  public void compositeReadsAcrossComponents() {
+    ByteBuf header = allocator.alloc(16);
+    header.writeShort((short) 0x0102);
+    header.writeByte((byte) 0x03);
+    ByteBuf body = allocator.alloc(16);
+    body.writeByte((byte) 0x04);
+    body.writeInt(0x05060708);
+    CompositeByteBuf composite = new CompositeByteBuf(header, body);
+    assertEquals(2, composite.numComponents());
+    assertEquals(8, composite.readableBytes());
+    assertEquals(0x0102030405060708L, composite.getLong(0));
+    ByteBuffer[] buffers = composite.nioBuffers();
+    assertEquals(2, buffers.length);
+    assertEquals(3, buffers[0].remaining());
+    assertEquals(5, buffers[1].remaining());
+    assertEquals(0x04, buffers[1].get(0));
+    composite.release();
+  }
+
+  @Test
+  public void alignedBufferStartsOnBoundary() {
+    for (int alignment = 1; alignment <= 4096; alignment <<= 1) {
+      AbstractByteBuf byteBuf = (AbstractByteBuf) allocator.alloc(100, alignment);
+      long address = DirectBufferAddress.address(byteBuf.memory()) + byteBuf.offset();
+      assertEquals(0, address & (alignment - 1));
+      byteBuf.release();
+    }
+  }
+
+  @Test
+  public void ensureWritableKeepsContent() {
+    ByteBuf byteBuf = allocator.alloc(8192);
+    for (int i = 0; i < 10000; i++) {
+      byteBuf.ensureWritable(4);
+      byteBuf.writeInt(i);
+    }
+    assertTrue(byteBuf.capacity() >= 40000);
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, byteBuf.readInt());
+    }
+    byteBuf.capacity(100);
+    assertEquals(0, byteBuf.readableBytes());
+    byteBuf.release();
+  }
+
+  @Test
+  public void moveCopiesContentOutsideTheIndexes() {
+    ByteBuf byteBuf = allocator.alloc(64);
+    int capacity = byteBuf.capacity();
+    byteBuf.setInt(0, 0xCAFEBABE);
+    byteBuf.setInt(capacity - 4, 0x01020304);
+    // a tiny slot cannot grow in place, so this moves with both indexes still at 0
+    byteBuf.capacity(2 * capacity + 7);
+    assertEquals(0xCAFEBABE, byteBuf.getInt(0));
+    assertEquals(0x01020304, byteBuf.getInt(capacity - 4));
+    byteBuf.release();
+  }
+
+  @Test
+  public void growsPastHalfAChunkAndBack() {
+    AllocationProfiler profiler = allocator.startProfiling();
+    AbstractByteBuf byteBuf = (AbstractByteBuf) allocator.alloc(1000, 512);
+    int halfChunk = allocator.chunkSize() / 2;
+    assertTrue(byteBuf.maxCapacity() > halfChunk);
+    byteBuf.writeInt(42);
+    byteBuf.ensureWritable(halfChunk);
+    assertTrue(byteBuf.capacity() > halfChunk);
+    byteBuf.capacity(600);
+    assertEquals(0, byteBuf.capacity() % 512);
+    long address = DirectBufferAddress.address(byteBuf.memory()) + byteBuf.offset();
+    assertEquals(0, address & 511);
+    assertEquals(42, byteBuf.readInt());
+    assertEquals(1, profiler.allocations());
+    allocator.stopProfiling();
+    byteBuf.release();
+  }
+
+  @Test
+  public void sliceSharesMemoryAndRefCnt() {
+    ByteBuf byteBuf = allocator.alloc(16);
+    byteBuf.writeInt(0x01020304);
+    byteBuf.writeInt(0x05060708);
+    ByteBuf slice = byteBuf.slice(4, 4).retain();
+    assertEquals(2, byteBuf.refCnt());
+    assertEquals(0x05060708, slice.readInt());
+    slice.setByte(0, (byte) 9);
+    assertEquals(9, byteBuf.getByte(4));
+    assertFalse(byteBuf.release());
+    assertTrue(slice.release());
+    assertEquals(0, slice.refCnt());
+  }
+
+  @Test
+  public void sliceOfReleasedRootFails() {
+    ByteBuf byteBuf = allocator.alloc(16);
+    ByteBuf slice = byteBuf.slice(0, 8);
+    ByteBuf duplicate = byteBuf.duplicate();
+    byteBuf.release();
+    assertReleased(slice);
+    // the root's wrapper is handed out again with a fresh reference count
+    ByteBuf reused = allocator.alloc(16);
+    assertSame(byteBuf, reused);
+    assertReleased(duplicate);
+    reused.release();
+  }
+
+  private static void assertReleased(ByteBuf byteBuf) {
+    try {
+      byteBuf.setLong(0, -1L);
+      fail("accessible after release");
+    } catch (IllegalStateException expected) {
+      // released
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void releaseTwiceFails() {
+    ByteBuf byteBuf = allocator.alloc(16);
+    byteBuf.release();
+    byteBuf.release();
+  }
+}
@@ -0,0 +1,79 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DeferredFreeTest {
+
+  // a large run, which the thread caches never hold
+  private static final int CAPACITY = 64 * 1024;
+
+  private static void onOtherThread(Runnable body) throws InterruptedException {
+    Thread thread = new Thread(body);
+    thread.start();
+    thread.join();
+  }
+
+  private static Runnable release(final ByteBuf byteBuf) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        byteBuf.release();
+      }
+    };
+  }
+
+  @Test
+  public void releaseFromAnotherArenaWaitsForTheOwnersLock() throws Exception {
+    final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(2)
+        .build());
+    final PooledByteBuf byteBuf = (PooledByteBuf) allocator.alloc(CAPACITY);
+    onOtherThread(new Runnable() {
+      @Override
+      public void run() {
+        // binds this thread to the other arena
+        allocator.alloc(16).release();
+        byteBuf.release();
+      }
+    });
+    assertEquals(2, allocator.threadCacheCount());
+    // the run is still taken: the wrapper is recycled only once its memory is freed
+    assertNotNull(byteBuf.chunk());
+    allocator.trim();
+    assertNull(byteBuf.chunk());
+  }
+
+  @Test
+  public void releaseByAThreadThatNeverAllocatedBindsNothing() throws Exception {
+    MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .build());
+    PooledByteBuf byteBuf = (PooledByteBuf) allocator.alloc(CAPACITY);
+    onOtherThread(release(byteBuf));
+    assertEquals(1, allocator.threadCacheCount());
+    assertNull(byteBuf.chunk());
+  }
+
+  @Test
+  public void releaseByAThreadThatNeverAllocatedDefersWhileLocked() throws Exception {
+    MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .build());
+    PooledByteBuf byteBuf = (PooledByteBuf) allocator.alloc(CAPACITY);
+    Arena arena = byteBuf.chunk().arena();
+    arena.lock();
+    try {
+      onOtherThread(release(byteBuf));
+    } finally {
+      arena.unlock();
+    }
+    assertEquals(1, allocator.threadCacheCount());
+    assertNotNull(byteBuf.chunk());
+    allocator.trim();
+    assertNull(byteBuf.chunk());
+  }
+}
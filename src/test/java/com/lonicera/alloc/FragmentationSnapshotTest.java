@@ -0,0 +1,76 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FragmentationSnapshotTest {
+
+  private static final int CHUNK_SIZE = Arena.DEFAULT_CHUNK_SIZE;
+  private static final int RUN_SIZE = Arena.DEFAULT_RUN_SIZE;
+
+  // no thread cache, which would take a whole magazine of slots
+  private final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+      .arenaCount(1)
+      .chunkIdleMillis(1000)
+      .arenaSelection(ArenaSelection.STRIPED)
+      .build());
+
+  private FragmentationSnapshot.ArenaFragmentation arena() {
+    return allocator.fragmentationSnapshot().arenas().get(0);
+  }
+
+  @Test
+  public void chunkCountsItsFreeSpans() {
+    ByteBuf byteBuf = allocator.alloc(4 * RUN_SIZE);
+    FragmentationSnapshot.ArenaFragmentation arena = arena();
+    assertEquals(1, arena.chunks().size());
+    FragmentationSnapshot.ChunkFragmentation chunk = arena.chunks().get(0);
+    assertEquals(4 * RUN_SIZE, chunk.usedBytes());
+    // the other half of the chunk is the largest buddy block left
+    assertEquals(CHUNK_SIZE / 2, chunk.largestFreeRun());
+    long[] histogram = chunk.freeRunHistogram();
+    int pages = CHUNK_SIZE / RUN_SIZE;
+    // one span of all pages but the run's four
+    int bucket = Integer.SIZE - 1 - Integer.numberOfLeadingZeros(pages - 4);
+    for (int i = 0; i < histogram.length; i++) {
+      assertEquals(i == bucket ? 1 : 0, histogram[i]);
+    }
+    assertEquals(1 - (double) (CHUNK_SIZE / 2) / (CHUNK_SIZE - 4 * RUN_SIZE),
+        chunk.externalFragmentation(), 1e-9);
+    String json = allocator.fragmentationSnapshot().toJson();
+    assertTrue(json.startsWith("{\"arenas\":["));
+    assertTrue(json.contains("\"largestFreeRun\":" + CHUNK_SIZE / 2));
+    assertTrue(json.contains("\"freeRunHistogram\":{\"" + ((long) RUN_SIZE << bucket) + "\":1}"));
+
+    byteBuf.release();
+    chunk = arena().chunks().get(0);
+    assertEquals(0, chunk.usedBytes());
+    assertEquals(CHUNK_SIZE, chunk.largestFreeRun());
+    assertEquals(0, chunk.externalFragmentation(), 0);
+  }
+
+  @Test
+  public void sizeClassCountsItsSlots() {
+    ByteBuf byteBuf = allocator.alloc(100);
+    FragmentationSnapshot.SizeClassOccupancy occupied = null;
+    for (FragmentationSnapshot.SizeClassOccupancy sizeClass : arena().sizeClasses()) {
+      if (sizeClass.runs() > 0) {
+        assertNull(occupied);
+        occupied = sizeClass;
+      }
+    }
+    assertTrue(occupied.allocSize() >= 100);
+    assertEquals(1, occupied.runs());
+    assertEquals(1, occupied.usedSlots());
+    assertEquals(occupied.runBytes() / occupied.allocSize(), occupied.slots());
+    assertEquals(1 - (double) occupied.allocSize() / occupied.runBytes(),
+        arena().internalFragmentation(), 1e-9);
+    byteBuf.release();
+    for (FragmentationSnapshot.SizeClassOccupancy sizeClass : arena().sizeClasses()) {
+      assertEquals(0, sizeClass.usedSlots());
+    }
+  }
+}
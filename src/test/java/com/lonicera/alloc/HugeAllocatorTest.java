@@ -0,0 +1,71 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class HugeAllocatorTest {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int REGION_SIZE = 8 * CHUNK_SIZE;
+
+  private final Arena arena = new Arena(null, ChunkSource.HEAP);
+  private final HugeAllocator allocator = new HugeAllocator(CHUNK_SIZE, REGION_SIZE, REGION_SIZE,
+      Arena.DEFAULT_RUN_SIZE, ChunkSource.HEAP, arena.metrics());
+
+  @Test
+  public void freedExtentsCoalesceWithBothNeighbours() {
+    UnpooledChunk first = allocator.alloc(CHUNK_SIZE);
+    UnpooledChunk middle = allocator.alloc(CHUNK_SIZE + 1);
+    UnpooledChunk last = allocator.alloc(CHUNK_SIZE);
+    assertEquals(2 * CHUNK_SIZE, middle.length());
+    assertEquals(3 * CHUNK_SIZE, last.offset());
+
+    allocator.free(first);
+    allocator.free(last);
+    allocator.free(middle);
+    // only one extent spanning the whole region can hold this without a new region
+    UnpooledChunk whole = allocator.alloc(REGION_SIZE);
+    assertSame(first.region(), whole.region());
+    assertEquals(0, whole.offset());
+    assertEquals(REGION_SIZE, allocator.reservedSize());
+    allocator.free(whole);
+  }
+
+  @Test
+  public void emptyRegionsAreFreedPastTheRetainedLimit() {
+    UnpooledChunk first = allocator.alloc(REGION_SIZE);
+    UnpooledChunk second = allocator.alloc(REGION_SIZE);
+    assertEquals(2 * REGION_SIZE, allocator.reservedSize());
+
+    allocator.free(first);
+    assertEquals(REGION_SIZE, allocator.reservedSize());
+    // within the limit the empty region is kept for the next huge allocation
+    allocator.free(second);
+    assertEquals(REGION_SIZE, allocator.reservedSize());
+    allocator.trim();
+    assertEquals(0, allocator.reservedSize());
+  }
+
+  @Test
+  public void regionsAreSizedToTheRequestWhenNothingMayBeRetained() {
+    HugeAllocator unretained = new HugeAllocator(CHUNK_SIZE, REGION_SIZE, 0,
+        Arena.DEFAULT_RUN_SIZE, ChunkSource.HEAP, arena.metrics());
+    UnpooledChunk extent = unretained.alloc(CHUNK_SIZE + 1);
+    assertEquals(2 * CHUNK_SIZE, unretained.reservedSize());
+    unretained.free(extent);
+    assertEquals(0, unretained.reservedSize());
+  }
+
+  @Test
+  public void idleTrimKeepsRecentlyEmptiedRegions() {
+    allocator.free(allocator.alloc(CHUNK_SIZE));
+    assertEquals(REGION_SIZE, allocator.reservedSize());
+    allocator.trim(TimeUnit.HOURS.toNanos(1));
+    assertEquals(REGION_SIZE, allocator.reservedSize());
+    allocator.trim(0);
+    assertEquals(0, allocator.reservedSize());
+  }
+}
@@ -0,0 +1,76 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LeakDetectorTest {
+
+  // held so the level set on it is not lost with a collected logger
+  private static final Logger LOGGER = Logger.getLogger(LeakDetector.class.getName());
+
+  private final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+      .arenaCount(1)
+      .build());
+  private final MemoryAllocatorMetrics metrics = new MemoryAllocatorMetrics(allocator);
+
+  @Before
+  public void setUp() {
+    // the reports are expected here, and only clutter the build output
+    LOGGER.setLevel(Level.OFF);
+    allocator.leakDetection(LeakDetectionLevel.PARANOID);
+  }
+
+  @After
+  public void tearDown() {
+    LOGGER.setLevel(null);
+  }
+
+  // the buffer is only reachable from this frame, so it is gone once the method returns
+  private void leak(int capacity, int newCapacity) {
+    ByteBuf byteBuf = allocator.alloc(capacity);
+    byteBuf.writeInt(42);
+    if (newCapacity > 0) {
+      byteBuf.capacity(newCapacity);
+    }
+    assertTrue(metrics.getUsedBytes() > 0);
+  }
+
+  private void awaitLeak() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (metrics.getLeaksDetected() == 0 && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(10);
+      allocator.trim();
+    }
+    assertEquals(1, metrics.getLeaksDetected());
+  }
+
+  @Test
+  public void droppedBufferIsReportedAndItsMemoryReclaimed() throws Exception {
+    leak(64, 0);
+    awaitLeak();
+    assertEquals(0, metrics.getUsedBytes());
+  }
+
+  @Test
+  public void trackerFollowsAMoveToAnotherSlot() throws Exception {
+    // a tiny slot cannot grow in place; reclaiming the old slot instead would leave the new one
+    // used and count the old one freed twice
+    leak(64, 2 * 64 + 7);
+    awaitLeak();
+    assertEquals(0, metrics.getUsedBytes());
+  }
+
+  @Test
+  public void trackerFollowsAMoveToAHugeExtent() throws Exception {
+    leak(64, allocator.chunkSize());
+    awaitLeak();
+    assertEquals(0, metrics.getUsedBytes());
+  }
+}
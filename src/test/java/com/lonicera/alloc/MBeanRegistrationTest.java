@@ -0,0 +1,91 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+
+public class MBeanRegistrationTest {
+
+  private static final String NAME = "mbean-registration-test";
+
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+  private final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+      .arenaCount(2)
+      .build());
+
+  @After
+  public void tearDown() {
+    allocator.unregisterMBeans();
+  }
+
+  private static ObjectName arenaName(String memory, int index) throws Exception {
+    return new ObjectName("com.lonicera.alloc:type=Arena,allocator=" + ObjectName.quote(NAME)
+        + ",memory=" + memory + ",index=" + index);
+  }
+
+  @Test
+  public void allocatorAndArenasAreQueryableUntilUnregistered() throws Exception {
+    allocator.registerMBeans(NAME);
+    ObjectName allocatorName = new ObjectName("com.lonicera.alloc:type=MemoryAllocator,name="
+        + ObjectName.quote(NAME));
+    // two arenas for each of direct and heap memory
+    assertEquals(4, server.queryNames(new ObjectName("com.lonicera.alloc:type=Arena,allocator="
+        + ObjectName.quote(NAME) + ",*"), null).size());
+    assertTrue(server.isRegistered(allocatorName));
+    for (String memory : new String[]{"direct", "heap"}) {
+      for (int i = 0; i < 2; i++) {
+        assertTrue(server.isRegistered(arenaName(memory, i)));
+      }
+    }
+
+    ByteBuf byteBuf = allocator.alloc(64);
+    assertEquals(2, server.getAttribute(allocatorName, "ArenaCount"));
+    assertEquals(1, server.getAttribute(allocatorName, "ThreadCaches"));
+    assertEquals(1L, server.getAttribute(arenaName("direct", 0), "QuantumAllocations"));
+    assertEquals(1, server.getAttribute(arenaName("direct", 0), "BoundThreads"));
+    assertEquals(0L, server.getAttribute(arenaName("direct", 1), "QuantumAllocations"));
+    byteBuf.release();
+    assertEquals(1L, server.getAttribute(arenaName("direct", 0), "QuantumFrees"));
+
+    allocator.unregisterMBeans();
+    assertFalse(server.isRegistered(allocatorName));
+    assertFalse(server.isRegistered(arenaName("direct", 0)));
+    assertFalse(server.isRegistered(arenaName("heap", 1)));
+  }
+
+  @Test
+  public void registeringTwiceFails() {
+    allocator.registerMBeans(NAME);
+    try {
+      allocator.registerMBeans(NAME);
+      fail();
+    } catch (IllegalStateException expected) {
+      // still registered once
+    }
+  }
+
+  @Test
+  public void registeringATakenNameFailsAndLeavesNothingBehind() throws Exception {
+    allocator.registerMBeans(NAME);
+    MemoryAllocator other = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(3)
+        .build());
+    try {
+      other.registerMBeans(NAME);
+      fail();
+    } catch (IllegalStateException expected) {
+      // the name of the first allocator is taken
+    }
+    // the arena index only the other allocator has was not left registered either
+    assertFalse(server.isRegistered(arenaName("direct", 2)));
+    assertTrue(server.isRegistered(arenaName("direct", 1)));
+  }
+}
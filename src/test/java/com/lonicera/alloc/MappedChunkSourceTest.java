@@ -0,0 +1,56 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedChunkSourceTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private MemoryAllocator allocator(File mappedDirectory) {
+    return new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .chunkIdleMillis(1000)
+        .mappedDirectory(mappedDirectory)
+        .build());
+  }
+
+  @Test
+  public void mappedBufferRoundTrips() throws Exception {
+    File directory = folder.getRoot();
+    MemoryAllocator allocator = allocator(directory);
+    ByteBuf byteBuf = allocator.alloc(4096, MemoryType.MAPPED);
+    assertTrue(byteBuf.isDirect());
+    assertFalse(byteBuf.hasArray());
+    byte[] src = new byte[4096];
+    for (int i = 0; i < src.length; i++) {
+      src[i] = (byte) i;
+    }
+    assertEquals(src.length, byteBuf.writeBytes(src));
+    byte[] dst = new byte[src.length];
+    assertEquals(src.length, byteBuf.readBytes(dst));
+    assertArrayEquals(src, dst);
+    assertTrue(byteBuf.release());
+    // the chunk file is unlinked as soon as it is mapped
+    assertEquals(0, directory.list().length);
+    assertEquals(1, allocator.fragmentationSnapshot().arenas().get(2).chunks().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void missingDirectoryFails() {
+    new MappedChunkSource(new File(folder.getRoot(), "missing"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void mappedWithoutDirectoryFails() {
+    allocator(null).alloc(4096, MemoryType.MAPPED);
+  }
+}
@@ -0,0 +1,140 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import org.junit.Test;
+
+public class MemoryAllocatorTest {
+
+  @Test
+  public void deadThreadCacheIsSweptWithoutNewThreads() throws Exception {
+    final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .build());
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        // released into the thread's own magazine
+        allocator.alloc(64).release();
+      }
+    });
+    thread.start();
+    thread.join();
+    assertEquals(1, allocator.threadCacheCount());
+    // the magazine filled a batch of slots beyond the one allocated
+    assertTrue(allocator.fragmentationSnapshot().arenas().get(0).sizeClasses().get(0)
+        .usedSlots() > 1);
+    long deadline = System.currentTimeMillis() + 10 * ThreadCacheSweeper.SWEEP_INTERVAL_MILLIS;
+    while (allocator.threadCacheCount() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(0, allocator.threadCacheCount());
+    assertEquals(0, allocator.arenaMetrics()[0].getBoundThreads());
+    for (FragmentationSnapshot.SizeClassOccupancy sizeClass
+        : allocator.fragmentationSnapshot().arenas().get(0).sizeClasses()) {
+      assertEquals(0, sizeClass.usedSlots());
+    }
+  }
+
+  @Test
+  public void idleThreadCacheIsFlushedWhileItsThreadLives() throws Exception {
+    final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .threadCacheIdleMillis(0)
+        .build());
+    final CountDownLatch cached = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        allocator.alloc(64).release();
+        cached.countDown();
+        try {
+          // parked, so the owner never trims its own magazines
+          done.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    thread.start();
+    cached.await();
+    assertTrue(usedSlots(allocator) > 0);
+    long deadline = System.currentTimeMillis() + 10 * ThreadCacheSweeper.SWEEP_INTERVAL_MILLIS;
+    while (usedSlots(allocator) > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(0, usedSlots(allocator));
+    // the thread keeps its binding and its now empty cache
+    assertEquals(1, allocator.threadCacheCount());
+    done.countDown();
+    thread.join();
+  }
+
+  private static int usedSlots(MemoryAllocator allocator) {
+    int usedSlots = 0;
+    // a chunk that drains may be destroyed, and takes its size classes out of the snapshot
+    for (FragmentationSnapshot.SizeClassOccupancy sizeClass
+        : allocator.fragmentationSnapshot().arenas().get(0).sizeClasses()) {
+      usedSlots += sizeClass.usedSlots();
+    }
+    return usedSlots;
+  }
+
+  @Test
+  public void stripedSelectionKeepsNoThreadCache() {
+    MemoryAllocator striped = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(2)
+        .chunkIdleMillis(1000)
+        .arenaSelection(ArenaSelection.STRIPED)
+        .build());
+    ByteBuf byteBuf = striped.alloc(100);
+    byteBuf.writeInt(42);
+    assertEquals(42, byteBuf.readInt());
+    assertTrue(byteBuf.release());
+    assertEquals(0, striped.threadCacheCount());
+    // without a magazine to keep it, the slot goes straight back to its run
+    for (FragmentationSnapshot.ArenaFragmentation arena
+        : striped.fragmentationSnapshot().arenas()) {
+      assertEquals(0, arena.usedBytes());
+      for (FragmentationSnapshot.SizeClassOccupancy sizeClass : arena.sizeClasses()) {
+        assertEquals(0, sizeClass.usedSlots());
+      }
+    }
+    for (ArenaMetrics metrics : striped.arenaMetrics()) {
+      assertEquals(0, metrics.getBoundThreads());
+    }
+  }
+
+  @Test
+  public void bulkAllocReleasesAll() {
+    MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .build());
+    // above the thread cache, so every run goes back to the chunk
+    int capacity = ArenaAllocCache.DEFAULT_MAX_CACHED_CAPACITY + 8192;
+    ByteBuf[] byteBufs = new ByteBuf[8];
+    allocator.alloc(capacity, 8, byteBufs);
+    for (int i = 0; i < byteBufs.length; i++) {
+      byteBufs[i].setInt(capacity - 4, i);
+    }
+    for (int i = 0; i < byteBufs.length; i++) {
+      assertEquals(i, byteBufs[i].getInt(capacity - 4));
+    }
+    ArenaMetrics metrics = allocator.arenaMetrics()[0];
+    assertTrue(metrics.getUsedBytes() >= 8L * capacity);
+    long lockAcquired = metrics.getLockAcquired();
+    allocator.releaseAll(byteBufs);
+    assertEquals(lockAcquired + 1, metrics.getLockAcquired());
+    for (ByteBuf byteBuf : byteBufs) {
+      assertEquals(0, byteBuf.refCnt());
+    }
+    assertEquals(0, metrics.getUsedBytes());
+    for (FragmentationSnapshot.ChunkFragmentation chunk
+        : allocator.fragmentationSnapshot().arenas().get(0).chunks()) {
+      assertEquals(0, chunk.usedBytes());
+    }
+  }
+}
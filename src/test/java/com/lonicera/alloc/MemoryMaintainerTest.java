@@ -0,0 +1,150 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class MemoryMaintainerTest {
+
+  private static final int HALF_CHUNK = Arena.DEFAULT_CHUNK_SIZE / 2;
+
+  private static MemoryAllocator allocator(long intervalMillis, long lowWatermark) {
+    return new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .retainedEmptyChunks(1)
+        .chunkIdleMillis(60_000)
+        .maintenanceIntervalMillis(intervalMillis)
+        .lowWatermark(lowWatermark)
+        .build());
+  }
+
+  private static ArenaMetrics metrics(MemoryAllocator allocator) {
+    return allocator.arenaMetrics()[0];
+  }
+
+  // the slots the thread cache holds count as used in the snapshot, unlike in the metrics
+  private static int usedSlots(MemoryAllocator allocator) {
+    int usedSlots = 0;
+    for (FragmentationSnapshot.SizeClassOccupancy sizeClass
+        : allocator.fragmentationSnapshot().arenas().get(0).sizeClasses()) {
+      usedSlots += sizeClass.usedSlots();
+    }
+    return usedSlots;
+  }
+
+  // three of them take two chunks
+  private static void allocAndReleaseThree(MemoryAllocator allocator) {
+    ByteBuf[] byteBufs = new ByteBuf[3];
+    for (int i = 0; i < byteBufs.length; i++) {
+      byteBufs[i] = allocator.alloc(HALF_CHUNK);
+    }
+    for (ByteBuf byteBuf : byteBufs) {
+      byteBuf.release();
+    }
+  }
+
+  private static void awaitChunksDestroyed(MemoryAllocator allocator, long chunksDestroyed)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (metrics(allocator).getChunksDestroyed() < chunksDestroyed
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(chunksDestroyed, metrics(allocator).getChunksDestroyed());
+  }
+
+  @Test
+  public void maintainerDestroysSurplusChunksInsteadOfTheReleasingThread() throws Exception {
+    MemoryAllocator allocator = allocator(500, Long.MAX_VALUE);
+    try {
+      allocAndReleaseThree(allocator);
+      assertEquals(2, metrics(allocator).getChunksCreated());
+      assertEquals(0, metrics(allocator).getChunksDestroyed());
+      awaitChunksDestroyed(allocator, 1);
+      // below the low watermark the retained chunk waits out its idle time
+      Thread.sleep(600);
+      assertEquals(1, metrics(allocator).getChunksDestroyed());
+      assertEquals(Arena.DEFAULT_CHUNK_SIZE, metrics(allocator).getReservedBytes());
+    } finally {
+      allocator.stopMaintenance();
+    }
+  }
+
+  @Test
+  public void maintainerFreesRetainedChunksPastTheLowWatermark() throws Exception {
+    MemoryAllocator allocator = allocator(20, 0);
+    try {
+      allocAndReleaseThree(allocator);
+      awaitChunksDestroyed(allocator, 2);
+      assertEquals(0, metrics(allocator).getReservedBytes());
+    } finally {
+      allocator.stopMaintenance();
+    }
+  }
+
+  @Test
+  public void maintainerFlushesTheCacheOfAParkedThreadPastTheHighWatermark() throws Exception {
+    final MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .maintenanceIntervalMillis(20)
+        .lowWatermark(0)
+        .highWatermark(0)
+        .build());
+    final CountDownLatch cached = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        allocator.alloc(64).release();
+        cached.countDown();
+        try {
+          done.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    thread.start();
+    try {
+      cached.await();
+      // well within the default thread cache idle time
+      long deadline = System.currentTimeMillis() + 5000;
+      while (usedSlots(allocator) > 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertEquals(0, usedSlots(allocator));
+      assertEquals(1, allocator.threadCacheCount());
+    } finally {
+      done.countDown();
+      thread.join();
+      allocator.stopMaintenance();
+    }
+  }
+
+  @Test
+  public void failedRoundDoesNotEndTheMaintainer() throws Exception {
+    final AtomicInteger rounds = new AtomicInteger();
+    MemoryAllocator allocator = new MemoryAllocator(MemoryAllocatorConfig.builder()
+        .arenaCount(1)
+        .maintenanceIntervalMillis(10)
+        .build()) {
+      @Override
+      void maintain(boolean pressure, boolean flushIdleCaches) {
+        rounds.incrementAndGet();
+        throw new IllegalStateException("failing round");
+      }
+    };
+    try {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (rounds.get() < 3 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertTrue(rounds.get() >= 3);
+    } finally {
+      allocator.stopMaintenance();
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package com.lonicera.alloc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PooledChunkTest {
+
+  private static final int RUN_SIZE = Arena.DEFAULT_RUN_SIZE;
+
+  private final Arena arena = new Arena(null, ChunkSource.HEAP);
+  private final PooledChunk chunk = new PooledChunk(arena, arena.chunkSize(), RUN_SIZE,
+      new ChunkList("ALL", null, null, 0, 100));
+
+  /**
+   * Remembers the slot of the last allocation.
+   */
+  private static final class LastSlot implements AllocTarget {
+
+    private int slot = -1;
+
+    @Override
+    public void accept(PooledChunk chunk, long handle, int capacity) {
+      slot = (int) handle;
+    }
+  }
+
+  /**
+   * Remembers the handle of the last allocation.
+   */
+  private static final class LastHandle implements AllocTarget {
+
+    private long handle = -1;
+
+    @Override
+    public void accept(PooledChunk chunk, long handle, int capacity) {
+      this.handle = handle;
+    }
+  }
+
+  private long allocRun(int pages) {
+    LastHandle target = new LastHandle();
+    assertTrue(chunk.alloc(target, pages * RUN_SIZE));
+    return target.handle;
+  }
+
+  private boolean wholeChunkFree() {
+    return runFits(arena.chunkSize() / RUN_SIZE);
+  }
+
+  private boolean runFits(int pages) {
+    LastHandle target = new LastHandle();
+    if (!chunk.alloc(target, pages * RUN_SIZE)) {
+      return false;
+    }
+    chunk.release(target.handle);
+    return true;
+  }
+
+  private static int allocSlot(SmallAllocNode node) {
+    LastSlot target = new LastSlot();
+    assertTrue(node.alloc(target));
+    return target.slot;
+  }
+
+  @Test
+  public void lowestFreeSlotAcrossSummaryWords() {
+    // 70 full bitmap words and 5 slots of a 71st, so the summary spans two words
+    int slots = 70 * Long.SIZE + 5;
+    SmallAllocNode head = new SmallAllocNode(1);
+    SmallAllocNode node = new SmallAllocNode(head, null, 0, slots, 0, 0, 1);
+    for (int i = 0; i < slots; i++) {
+      assertEquals(i, allocSlot(node));
+    }
+    // the tail bits past the last slot never show up as free
+    assertFalse(node.alloc(new LastSlot()));
+
+    node.free(slots - 1);
+    node.free(100);
+    assertEquals(100, allocSlot(node));
+    assertEquals(slots - 1, allocSlot(node));
+
+    node.free(slots - 2);
+    node.free(64 * Long.SIZE);
+    assertEquals(64 * Long.SIZE, allocSlot(node));
+    assertEquals(slots - 2, allocSlot(node));
+    assertFalse(node.alloc(new LastSlot()));
+  }
+
+  @Test
+  public void releasedRunsCoalesceBackIntoTheWholeChunk() {
+    long[] handles = new long[8];
+    for (int i = 0; i < handles.length; i++) {
+      handles[i] = allocRun(1 << (i % 4));
+    }
+    assertFalse(wholeChunkFree());
+    // release out of order, so buddies come back in every combination
+    for (int i : new int[]{3, 0, 6, 1, 7, 4, 2, 5}) {
+      chunk.release(handles[i]);
+    }
+    assertEquals(0, chunk.usage());
+    assertTrue(wholeChunkFree());
+  }
+
+  @Test
+  public void resizeRunGrowsIntoFreePagesOnly() {
+    long first = allocRun(2);
+    long second = allocRun(2);
+    assertEquals(0, chunk.offset(first));
+    assertEquals(2 * RUN_SIZE, chunk.offset(second));
+
+    // the pages after the first run belong to the second
+    assertFalse(chunk.resizeRun(first, 3));
+    assertTrue(chunk.resizeRun(second, 6));
+    assertEquals(8 * RUN_SIZE, chunk.allocatedSize());
+    // past the end of the chunk
+    assertFalse(chunk.resizeRun(second, arena.chunkSize() / RUN_SIZE));
+
+    assertTrue(chunk.resizeRun(second, 1));
+    assertTrue(chunk.resizeRun(first, 1));
+    assertEquals(2 * RUN_SIZE, chunk.allocatedSize());
+    chunk.release(first);
+    chunk.release(second);
+    assertTrue(wholeChunkFree());
+  }
+
+  @Test
+  public void runTakesOnlyItsOwnPages() {
+    long five = allocRun(5);
+    assertEquals(5 * RUN_SIZE, chunk.allocatedSize());
+    // the three pages left of its eight page block serve later runs
+    long two = allocRun(2);
+    long one = allocRun(1);
+    assertEquals(6 * RUN_SIZE, chunk.offset(two));
+    assertEquals(5 * RUN_SIZE, chunk.offset(one));
+    assertEquals(8 * RUN_SIZE, chunk.allocatedSize());
+    // the other half of the chunk is the largest block left
+    assertTrue(runFits(arena.chunkSize() / RUN_SIZE / 2));
+    assertFalse(runFits(arena.chunkSize() / RUN_SIZE / 2 + 1));
+    chunk.release(five);
+    chunk.release(one);
+    chunk.release(two);
+    assertTrue(wholeChunkFree());
+  }
+
+  @Test
+  public void sizeClassesAreMonotonicWithinTheirBoundaries() {
+    int count = arena.sizeIndex(arena.maxPooledCapacity()) + 1;
+    assertEquals(Arena.DEFAULT_TINY_SIZE, arena.sizeCapacity(0));
+    assertEquals(arena.maxPooledCapacity(), arena.sizeCapacity(count - 1));
+    for (int i = 0; i < count; i++) {
+      int capacity = arena.sizeCapacity(i);
+      assertEquals(i, arena.sizeIndex(capacity));
+      assertEquals(capacity, arena.alignCapacity(capacity));
+      if (i > 0) {
+        int previous = arena.sizeCapacity(i - 1);
+        assertTrue(capacity > previous);
+        // nothing between two neighbouring classes rounds to anything else
+        assertEquals(capacity, arena.alignCapacity(previous + 1));
+      }
+      if (arena.isTiny(capacity)) {
+        assertEquals(1, Integer.bitCount(capacity));
+      } else if (arena.isQuantum(capacity)) {
+        assertEquals(0, capacity % Arena.DEFAULT_QUANTUM_SIZE);
+      } else if (!arena.isSmall(capacity)) {
+        assertEquals(0, capacity % RUN_SIZE);
+      }
+    }
+    assertEquals(Arena.DEFAULT_QUANTUM_SIZE, arena.alignCapacity(Arena.DEFAULT_QUANTUM_SIZE - 1));
+    assertEquals(RUN_SIZE, arena.alignCapacity(RUN_SIZE - 1));
+    assertEquals(2 * RUN_SIZE, arena.alignCapacity(RUN_SIZE + 1));
+  }
+}